@@ -214,8 +214,10 @@ public class BaseTest {
 
     /**
      * Method to override to instruct pax exam to delete the test bundle if already built.
+     * By default, the test bundle is reused as long as its inputs (classes, resources and extra exports) are
+     * unchanged.
      *
-     * @return true to delete the test bundle.
+     * @return true to delete the test bundle, and so always rebuild it.
      */
     public boolean deleteTestBundle() {
         return deleteTestBundle;
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Profiles the installation, resolution and activation of bundles.
+ * The profiler records the time of the INSTALLED, RESOLVED, STARTING and STARTED events of each bundle. It must be
+ * started before the bundles to profile are installed, as nothing is known about the bundles installed before.
+ * <code>
+ *     BundleActivationProfiler profiler = new BundleActivationProfiler(context);
+ *     profiler.start();
+ *     // install and start bundles
+ *     System.out.println(profiler.getReport());
+ *     profiler.dispose();
+ * </code>
+ * {@link #getStartLevelReport()} aggregates the activations by start level. Only the bundles started while the
+ * profiler is running are covered: the bundles started by the framework before the test bundle (at lower start
+ * levels) cannot be observed from a test.
+ */
+public class BundleActivationProfiler extends AbstractHelper implements SynchronousBundleListener {
+
+    /**
+     * The header containing iPOJO component declarations.
+     */
+    public static final String IPOJO_COMPONENTS_HEADER = "iPOJO-Components";
+
+    /**
+     * Marks an event not received, {@link System#nanoTime()} values may be negative.
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final ConcurrentMap<Long, BundleTimings> m_timings = new ConcurrentHashMap<Long, BundleTimings>();
+    private long m_lastInstallation;
+    private long m_origin;
+    private boolean m_started;
+
+    public BundleActivationProfiler(BundleContext context) {
+        super(context);
+    }
+
+    /**
+     * Starts recording bundle events. Previous records are discarded.
+     */
+    public synchronized void start() {
+        m_timings.clear();
+        m_lastInstallation = System.nanoTime();
+        m_origin = m_lastInstallation;
+        if (!m_started) {
+            context.addBundleListener(this);
+            m_started = true;
+        }
+    }
+
+    /**
+     * Stops recording bundle events. The records are kept.
+     */
+    public synchronized void stop() {
+        if (m_started) {
+            context.removeBundleListener(this);
+            m_started = false;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        stop();
+        m_timings.clear();
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        long now = System.nanoTime();
+        Bundle bundle = event.getBundle();
+        BundleTimings timings;
+        if (event.getType() == BundleEvent.INSTALLED || event.getType() == BundleEvent.STARTING) {
+            timings = getOrCreateTimings(bundle);
+        } else {
+            // Other events only complete the rows of the profiled bundles.
+            timings = m_timings.get(bundle.getBundleId());
+            if (timings == null) {
+                return;
+            }
+        }
+        synchronized (timings) {
+            switch (event.getType()) {
+                case BundleEvent.INSTALLED:
+                    timings.m_installed = now;
+                    timings.m_previous = nextInstallation(now);
+                    break;
+                case BundleEvent.RESOLVED:
+                    timings.m_resolved = now;
+                    break;
+                case BundleEvent.STARTING:
+                    timings.m_starting = now;
+                    timings.m_startLevel = getStartLevel(bundle);
+                    break;
+                case BundleEvent.STARTED:
+                    timings.m_started = now;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static int getStartLevel(Bundle bundle) {
+        try {
+            BundleStartLevel level = bundle.adapt(BundleStartLevel.class);
+            return level == null ? -1 : level.getStartLevel();
+        } catch (IllegalStateException e) {
+            // Uninstalled.
+            return -1;
+        }
+    }
+
+    private synchronized long nextInstallation(long now) {
+        long previous = m_lastInstallation;
+        m_lastInstallation = now;
+        return previous;
+    }
+
+    private BundleTimings getOrCreateTimings(Bundle bundle) {
+        BundleTimings timings = m_timings.get(bundle.getBundleId());
+        if (timings == null) {
+            BundleTimings created = new BundleTimings(bundle);
+            timings = m_timings.putIfAbsent(bundle.getBundleId(), created);
+            if (timings == null) {
+                timings = created;
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * Gets the recorded timings, ranked from the slowest activation to the fastest.
+     *
+     * @return the list of timings
+     */
+    public List<BundleTimings> getTimings() {
+        List<BundleTimings> list = new ArrayList<BundleTimings>(m_timings.values());
+        Collections.sort(list, new Comparator<BundleTimings>() {
+            public int compare(BundleTimings t1, BundleTimings t2) {
+                int result = compareDurations(t2.getActivationDuration(), t1.getActivationDuration());
+                if (result == 0) {
+                    result = compareDurations(t2.getResolutionDuration(), t1.getResolutionDuration());
+                }
+                return result;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Gets a textual report of the recorded timings, ranked from the slowest activation to the fastest.
+     * Durations are in milliseconds, unknown durations are displayed as `-`.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ENGLISH, "%-6s %-50s %10s %10s %10s %6s%n",
+                "Id", "Symbolic Name", "Inst. gap", "Resolve", "Activator", "iPOJO"));
+        for (BundleTimings timings : getTimings()) {
+            builder.append(String.format(Locale.ENGLISH, "%-6d %-50s %10s %10s %10s %6s%n",
+                    timings.getBundleId(),
+                    timings.getSymbolicName(),
+                    format(timings.getInstallationInterval()),
+                    format(timings.getResolutionDuration()),
+                    format(timings.getActivationDuration()),
+                    timings.isIPOJOBundle() ? "yes" : ""));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets a textual report of the activations by start level: the number of started bundles, the time of the first
+     * STARTING event since the start of the profiler, and the time elapsed until the last STARTED event of the
+     * level. Durations are in milliseconds.
+     *
+     * @return the report
+     */
+    public String getStartLevelReport() {
+        // start level -> count, first STARTING, last STARTED
+        Map<Integer, long[]> levels = new TreeMap<Integer, long[]>();
+        for (BundleTimings timings : m_timings.values()) {
+            synchronized (timings) {
+                if (timings.m_starting == UNKNOWN || timings.m_started == UNKNOWN) {
+                    continue;
+                }
+                long[] level = levels.get(timings.m_startLevel);
+                if (level == null) {
+                    levels.put(timings.m_startLevel, new long[] {1, timings.m_starting, timings.m_started});
+                } else {
+                    level[0]++;
+                    level[1] = Math.min(level[1], timings.m_starting);
+                    level[2] = Math.max(level[2], timings.m_started);
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ENGLISH, "%-6s %8s %12s %12s%n", "Level", "Bundles", "First", "Duration"));
+        for (Map.Entry<Integer, long[]> level : levels.entrySet()) {
+            builder.append(String.format(Locale.ENGLISH, "%-6d %8d %12s %12s%n",
+                    level.getKey(),
+                    level.getValue()[0],
+                    format(level.getValue()[1] - m_origin),
+                    format(level.getValue()[2] - level.getValue()[1])));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets a JSON report of the recorded timings, ranked from the slowest activation to the fastest.
+     * Durations are in milliseconds, unknown durations are set to {@literal null}.
+     *
+     * @return the JSON array
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("[");
+        boolean first = true;
+        for (BundleTimings timings : getTimings()) {
+            if (!first) {
+                builder.append(",");
+            }
+            first = false;
+            builder.append("{\"id\":").append(timings.getBundleId())
+                    .append(",\"symbolicName\":").append(quote(timings.getSymbolicName()))
+                    .append(",\"installInterval\":").append(toJsonNumber(timings.getInstallationInterval()))
+                    .append(",\"resolve\":").append(toJsonNumber(timings.getResolutionDuration()))
+                    .append(",\"activator\":").append(toJsonNumber(timings.getActivationDuration()))
+                    .append(",\"ipojo\":").append(timings.isIPOJOBundle())
+                    .append("}");
+        }
+        return builder.append("]").toString();
+    }
+
+    private static int compareDurations(long d1, long d2) {
+        return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+    }
+
+    private static String format(long nanos) {
+        if (nanos < 0) {
+            return "-";
+        }
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String toJsonNumber(long nanos) {
+        if (nanos < 0) {
+            return "null";
+        }
+        return format(nanos);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The timings recorded for a bundle. All durations are in nanoseconds, -1 if unknown.
+     */
+    public static class BundleTimings {
+
+        private final long m_bundleId;
+        private final String m_symbolicName;
+        private final boolean m_ipojo;
+        private long m_previous = UNKNOWN;
+        private long m_installed = UNKNOWN;
+        private long m_resolved = UNKNOWN;
+        private long m_starting = UNKNOWN;
+        private long m_started = UNKNOWN;
+        private int m_startLevel = -1;
+
+        private BundleTimings(Bundle bundle) {
+            m_bundleId = bundle.getBundleId();
+            m_symbolicName = bundle.getSymbolicName();
+            m_ipojo = bundle.getHeaders().get(IPOJO_COMPONENTS_HEADER) != null;
+        }
+
+        public long getBundleId() {
+            return m_bundleId;
+        }
+
+        public String getSymbolicName() {
+            return m_symbolicName;
+        }
+
+        /**
+         * @return the start level of the bundle when it was started, -1 if unknown.
+         */
+        public synchronized int getStartLevel() {
+            return m_startLevel;
+        }
+
+        /**
+         * @return {@literal true} if the bundle declares iPOJO components.
+         */
+        public boolean isIPOJOBundle() {
+            return m_ipojo;
+        }
+
+        /**
+         * Gets the time elapsed between the previous INSTALLED event of any bundle (or the start of the profiler)
+         * and the INSTALLED event of this bundle. This is not the installation time of the bundle: it also covers
+         * whatever happened between the two installations.
+         *
+         * @return the interval since the previous installation
+         */
+        public synchronized long getInstallationInterval() {
+            return duration(m_previous, m_installed);
+        }
+
+        /**
+         * @return the time elapsed between the INSTALLED and RESOLVED events.
+         */
+        public synchronized long getResolutionDuration() {
+            return duration(m_installed, m_resolved);
+        }
+
+        /**
+         * @return the time elapsed between the STARTING and STARTED events, i.e. the time spent in the bundle
+         * activator.
+         */
+        public synchronized long getActivationDuration() {
+            return duration(m_starting, m_started);
+        }
+
+        private static long duration(long from, long to) {
+            if (from == UNKNOWN || to == UNKNOWN) {
+                return -1;
+            }
+            return to - from;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.ops4j.pax.exam.CoreOptions;
+import org.ops4j.pax.exam.Option;
+import org.osgi.framework.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.ops4j.pax.exam.CoreOptions.composite;
+
+/**
+ * Builds several test bundles from class directories, to test the wiring between bundles without separate modules:
+ * <code>
+ *     BundleFixture.fixture()
+ *         .bundle("api").packages("org.acme.api").exports("org.acme.api")
+ *         .bundle("provider").packages("org.acme.provider.*").iPOJO()
+ *         .bundle("consumer").packages("org.acme.consumer").iPOJO()
+ *         .build();
+ * </code>
+ * The bundles are built concurrently in target/tested/fixtures. Like the test bundle, their manifest is computed
+ * from the bytecode, and a bundle is rebuilt only when its inputs (selected files, headers, metadata) changed.
+ */
+public class BundleFixture {
+
+    /**
+     * The directory receiving the fixture bundles.
+     */
+    public static final String FIXTURE_PATH = "target/tested/fixtures";
+
+    private final Map<String, BundleDefinition> m_bundles = new LinkedHashMap<String, BundleDefinition>();
+
+    private BundleFixture() {
+        // Use the fixture method.
+    }
+
+    /**
+     * Creates a new fixture.
+     *
+     * @return the fixture builder
+     */
+    public static BundleFixture fixture() {
+        return new BundleFixture();
+    }
+
+    /**
+     * Declares a bundle.
+     *
+     * @param symbolicName the bundle symbolic name, also used as file name
+     * @return the bundle definition
+     */
+    public BundleDefinition bundle(String symbolicName) {
+        BundleDefinition definition = new BundleDefinition(this, symbolicName);
+        m_bundles.put(symbolicName, definition);
+        return definition;
+    }
+
+    /**
+     * Builds the bundles, concurrently, and returns the option provisioning them in declaration order.
+     *
+     * @return the option
+     */
+    public Option build() {
+        long begin = System.currentTimeMillis();
+        final Map<String, String> versions = PackageAnalyzer.getExportedVersions(
+                System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(m_bundles.size(),
+                Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final BundleDefinition definition : m_bundles.values()) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return definition.buildIfChanged(versions);
+                    }
+                }));
+            }
+
+            List<Option> options = new ArrayList<Option>();
+            StringBuilder summary = new StringBuilder();
+            int index = 0;
+            for (BundleDefinition definition : m_bundles.values()) {
+                boolean built = get(definition, results.get(index++));
+                options.add(CoreOptions.bundle(definition.getFile().toURI().toURL().toExternalForm()));
+                if (summary.length() > 0) {
+                    summary.append(", ");
+                }
+                summary.append(definition.m_symbolicName).append(built ? " (built)" : " (up to date)");
+            }
+            System.out.println("Fixture bundles ready in " + (System.currentTimeMillis() - begin) + " ms : "
+                    + summary);
+            return composite(options.toArray(new Option[options.size()]));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot compute the url of the fixture bundles", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean get(BundleDefinition definition, Future<Boolean> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the fixture bundle " + definition.m_symbolicName);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Cannot build the fixture bundle " + definition.m_symbolicName, e.getCause());
+        }
+    }
+
+    /**
+     * The definition of a fixture bundle.
+     */
+    public static class BundleDefinition {
+
+        private final BundleFixture m_fixture;
+        private final String m_symbolicName;
+        private final List<File> m_roots = new ArrayList<File>();
+        private final List<String> m_packages = new ArrayList<String>();
+        private List<String> m_exports;
+        private final Map<String, String> m_headers = new TreeMap<String, String>();
+        private boolean m_ipojo;
+        private File m_metadata;
+
+        private BundleDefinition(BundleFixture fixture, String symbolicName) {
+            m_fixture = fixture;
+            m_symbolicName = symbolicName;
+        }
+
+        /**
+         * Adds class directories. By default, target/classes is used. When several directories contain the same
+         * entry, the first one wins, as on a class path.
+         *
+         * @param roots the directories
+         * @return the current definition
+         */
+        public BundleDefinition from(File... roots) {
+            m_roots.addAll(Arrays.asList(roots));
+            return this;
+        }
+
+        /**
+         * Selects the packages to include. A package ending with {@literal .*} also selects its sub-packages. By
+         * default, all the files of the class directories are included.
+         *
+         * @param packages the packages
+         * @return the current definition
+         */
+        public BundleDefinition packages(String... packages) {
+            m_packages.addAll(Arrays.asList(packages));
+            return this;
+        }
+
+        /**
+         * Sets the exported packages. By default, the included `service` and `services` packages are exported.
+         *
+         * @param packages the packages
+         * @return the current definition
+         */
+        public BundleDefinition exports(String... packages) {
+            if (m_exports == null) {
+                m_exports = new ArrayList<String>();
+            }
+            m_exports.addAll(Arrays.asList(packages));
+            return this;
+        }
+
+        /**
+         * Sets a manifest header, overriding the computed one.
+         *
+         * @param header the header
+         * @param value  the value
+         * @return the current definition
+         */
+        public BundleDefinition set(String header, String value) {
+            m_headers.put(header, value);
+            return this;
+        }
+
+        /**
+         * Applies the iPOJO manipulation, using annotations only.
+         *
+         * @return the current definition
+         */
+        public BundleDefinition iPOJO() {
+            m_ipojo = true;
+            return this;
+        }
+
+        /**
+         * Applies the iPOJO manipulation.
+         *
+         * @param metadata the metadata file or directory
+         * @return the current definition
+         */
+        public BundleDefinition iPOJO(File metadata) {
+            m_ipojo = true;
+            m_metadata = metadata;
+            return this;
+        }
+
+        /**
+         * Declares another bundle in the same fixture.
+         *
+         * @param symbolicName the bundle symbolic name
+         * @return the new bundle definition
+         */
+        public BundleDefinition bundle(String symbolicName) {
+            return m_fixture.bundle(symbolicName);
+        }
+
+        /**
+         * Builds the fixture.
+         *
+         * @return the option provisioning the fixture bundles
+         * @see BundleFixture#build()
+         */
+        public Option build() {
+            return m_fixture.build();
+        }
+
+        private File getFile() {
+            return new File(FIXTURE_PATH, m_symbolicName + ".jar");
+        }
+
+        /**
+         * Builds the bundle if its inputs changed since the last build.
+         *
+         * @return {@literal true} if the bundle was built, {@literal false} if it was up to date
+         */
+        boolean buildIfChanged(Map<String, String> versions) throws IOException {
+            Map<String, File> files = new TreeMap<String, File>();
+            List<File> roots = m_roots.isEmpty() ? Arrays.asList(new File("target/classes")) : m_roots;
+            for (File root : roots) {
+                collect(root, "", files);
+            }
+
+            File out = getFile();
+            File hashFile = new File(out.getParentFile(), out.getName() + ".sha1");
+            String hash = computeInputHash(files);
+            if (out.isFile() && hashFile.isFile() && hash.equals(FileUtils.readFileToString(hashFile).trim())) {
+                return false;
+            }
+            out.delete();
+            hashFile.delete();
+            out.getParentFile().mkdirs();
+
+            PackageAnalyzer analyzer = new PackageAnalyzer(new File(FIXTURE_PATH, m_symbolicName + ".packages"));
+            Map<String, URL> resources = new LinkedHashMap<String, URL>();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                analyzer.analyze(file.getKey(), FileUtils.readFileToByteArray(file.getValue()));
+                resources.put(file.getKey(), file.getValue().toURI().toURL());
+            }
+            analyzer.save();
+
+            List<String> exports = m_exports;
+            if (exports == null) {
+                exports = new ArrayList<String>();
+                for (String pkg : analyzer.getContainedPackages()) {
+                    if (TestBundleOption.isServicePackage(pkg)) {
+                        exports.add(pkg);
+                    }
+                }
+            }
+
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+            headers.put(Constants.BUNDLE_SYMBOLICNAME, m_symbolicName);
+            String exportClause = analyzer.getExportPackage(exports);
+            if (exportClause.length() > 0) {
+                headers.put(Constants.EXPORT_PACKAGE, exportClause);
+            }
+            String importClause = analyzer.getImportPackage(versions);
+            if (importClause.length() > 0) {
+                headers.put(Constants.IMPORT_PACKAGE, importClause);
+            }
+            headers.putAll(m_headers);
+
+            try {
+                if (m_ipojo) {
+                    new IncrementalIPOJOStrategy(m_metadata, new File(FIXTURE_PATH, m_symbolicName + "-ipojo-cache"),
+                            out, new ParallelJarBuilder()).build(resources, headers).close();
+                } else {
+                    ParallelJarBuilder.write(out, resources, headers);
+                }
+            } catch (IOException e) {
+                out.delete();
+                throw e;
+            } catch (RuntimeException e) {
+                out.delete();
+                throw e;
+            }
+            FileUtils.writeStringToFile(hashFile, hash);
+            return true;
+        }
+
+        private void collect(File directory, String prefix, Map<String, File> files) {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (child.isDirectory()) {
+                    collect(child, path + "/", files);
+                } else if (isSelected(prefix)) {
+                    File previous = files.get(path);
+                    if (previous == null) {
+                        files.put(path, child);
+                    } else {
+                        System.err.println("Duplicate entry " + path + " in the fixture bundle " + m_symbolicName
+                                + " : " + child.getAbsolutePath() + " ignored, " + previous.getAbsolutePath()
+                                + " used");
+                    }
+                }
+            }
+        }
+
+        private boolean isSelected(String directory) {
+            if (m_packages.isEmpty()) {
+                return true;
+            }
+            if (directory.length() == 0) {
+                // Default package.
+                return false;
+            }
+            String pkg = directory.substring(0, directory.length() - 1).replace('/', '.');
+            for (String selected : m_packages) {
+                if (selected.endsWith(".*")) {
+                    String parent = selected.substring(0, selected.length() - 2);
+                    if (pkg.equals(parent) || pkg.startsWith(parent + ".")) {
+                        return true;
+                    }
+                } else if (pkg.equals(selected)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String computeInputHash(Map<String, File> files) throws IOException {
+            MessageDigest digest = HashUtils.newDigest();
+            digest.update(m_symbolicName.getBytes("UTF-8"));
+            digest.update(String.valueOf(m_exports).getBytes("UTF-8"));
+            digest.update(m_headers.toString().getBytes("UTF-8"));
+            digest.update((byte) (m_ipojo ? 1 : 0));
+            // The imports and their ranges depend on the library and the class path, not only on the content.
+            digest.update(TestBundleOption.getGeneratorKey().getBytes("UTF-8"));
+            if (m_metadata != null && m_metadata.isFile()) {
+                digest.update(FileUtils.readFileToByteArray(m_metadata));
+            } else if (m_metadata != null && m_metadata.isDirectory()) {
+                // Sorted by relative path, so the hash does not depend on the file system order or location.
+                String base = m_metadata.getAbsolutePath() + File.separator;
+                Map<String, File> metadata = new TreeMap<String, File>();
+                for (File xml : FileUtils.listFiles(m_metadata, new String[] {"xml"}, true)) {
+                    metadata.put(xml.getAbsolutePath().substring(base.length()).replace(File.separatorChar, '/'),
+                            xml);
+                }
+                for (Map.Entry<String, File> xml : metadata.entrySet()) {
+                    digest.update(xml.getKey().getBytes("UTF-8"));
+                    digest.update((byte) 0);
+                    digest.update(FileUtils.readFileToByteArray(xml.getValue()));
+                }
+            }
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                digest.update(file.getKey().getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update(FileUtils.readFileToByteArray(file.getValue()));
+            }
+            return HashUtils.toHex(digest.digest());
+        }
+    }
+}
@@ -16,12 +16,32 @@ package org.ow2.chameleon.testing.helpers;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.FrameworkWiring;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.fail;
 
@@ -32,18 +52,81 @@ public class BundleHelper extends AbstractHelper {
 
     private List<Bundle> m_bundles = new ArrayList<Bundle>();
 
+    /**
+     * Content hashes of the bundles installed or updated from their content, indexed by bundle id.
+     */
+    private final Map<Long, String> m_hashes = new HashMap<Long, String>();
+
     public BundleHelper(BundleContext context) {
         super(context);
     }
 
+    /**
+     * Uninstalls all the bundles installed by this helper.
+     * Bundles are uninstalled in the reverse order of their installation, and packages are then refreshed once for
+     * the whole set. The method returns when the framework has notified the end of the refresh, so the wirings and
+     * class loaders of the uninstalled bundles are released before the next test.
+     */
     @Override
     public void dispose() {
-        for (Bundle bundle : m_bundles) {
+        if (m_bundles.isEmpty()) {
+            return;
+        }
+
+        List<Bundle> uninstalled = new ArrayList<Bundle>();
+        for (int i = m_bundles.size() - 1; i >= 0; i--) {
+            Bundle bundle = m_bundles.get(i);
             try {
                 bundle.uninstall();
             } catch (BundleException e) {
                 System.err.println(e.getMessage());
+                continue;
+            } catch (IllegalStateException e) {
+                // Already uninstalled, but it may still be pending removal.
             }
+            uninstalled.add(bundle);
+        }
+        m_bundles.clear();
+        m_hashes.clear();
+
+        if (!uninstalled.isEmpty() && !refreshPackages(uninstalled, 0)) {
+            System.err.println("Packages not refreshed after the uninstallation of " + uninstalled.size()
+                    + " bundles");
+        }
+    }
+
+    /**
+     * Refreshes the packages of the given bundles, and of the bundles depending on them.
+     * Unlike a plain refresh, this method waits until the framework fires the {@link FrameworkEvent#PACKAGES_REFRESHED}
+     * event.
+     * If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundles the bundles to refresh, {@literal null} to refresh all the bundles pending removal
+     * @param timeout the timeout in milliseconds
+     * @return {@literal true} if the refresh has completed, {@literal false} if the timeout was reached or if the
+     * framework does not support the refresh of packages.
+     */
+    public boolean refreshPackages(Collection<Bundle> bundles, long timeout) {
+        Bundle system = context.getBundle(0);
+        FrameworkWiring wiring = system == null ? null : system.adapt(FrameworkWiring.class);
+        if (wiring == null) {
+            return false;
+        }
+
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        wiring.refreshBundles(bundles, new FrameworkListener() {
+            public void frameworkEvent(FrameworkEvent event) {
+                if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                    refreshed.countDown();
+                }
+            }
+        });
+
+        try {
+            return refreshed.await(TimeUtils.timeout(timeout), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
@@ -97,6 +180,88 @@ public class BundleHelper extends AbstractHelper {
         return null; // Can not happen
     }
 
+    /**
+     * Installs a bundle from its content, without writing it on disk.
+     * Fails if the bundle cannot be installed.
+     *
+     * @param location the bundle location
+     * @param content  the jar file content
+     * @return the installed bundle
+     */
+    public Bundle install(String location, byte[] content) {
+        Bundle bundle = install(location, new ByteArrayInputStream(content));
+        m_hashes.put(bundle.getBundleId(), HashUtils.sha1(content));
+        return bundle;
+    }
+
+    /**
+     * Installs a bundle from its content, without writing it on disk.
+     * The position of the given buffer is not modified.
+     * Fails if the bundle cannot be installed.
+     *
+     * @param location the bundle location
+     * @param content  the jar file content, from the position to the limit of the buffer
+     * @return the installed bundle
+     */
+    public Bundle install(String location, ByteBuffer content) {
+        Bundle bundle;
+        if (content.hasArray()) {
+            bundle = install(location, new ByteArrayInputStream(content.array(),
+                    content.arrayOffset() + content.position(), content.remaining()));
+        } else {
+            bundle = install(location, new ByteBufferInputStream(content.duplicate()));
+        }
+        m_hashes.put(bundle.getBundleId(), HashUtils.sha1(content));
+        return bundle;
+    }
+
+    /**
+     * Builds and installs a bundle in memory.
+     * The bundle is installed with the location computed by {@link InMemoryBundle#getLocation()}.
+     * Fails if the bundle cannot be installed.
+     *
+     * @param bundle the bundle builder
+     * @return the installed bundle
+     */
+    public Bundle install(InMemoryBundle bundle) {
+        return install(bundle.getLocation(), bundle.build());
+    }
+
+    /**
+     * Installs a set of bundles from their content, without writing them on disk.
+     * Bundles are installed in the iteration order of the map.
+     * Fails if one of the bundles cannot be installed.
+     *
+     * @param bundles the bundle contents indexed by location
+     * @return the installed bundles
+     */
+    public List<Bundle> installAll(Map<String, byte[]> bundles) {
+        List<Bundle> installed = new ArrayList<Bundle>(bundles.size());
+        for (Map.Entry<String, byte[]> entry : bundles.entrySet()) {
+            installed.add(install(entry.getKey(), entry.getValue()));
+        }
+        return installed;
+    }
+
+    /**
+     * Installs and starts a bundle from its content, without writing it on disk.
+     * Fails if the bundle cannot be installed or an error occurs
+     * during startup.
+     *
+     * @param location the bundle location
+     * @param content  the jar file content
+     * @return the Bundle object.
+     */
+    public Bundle installAndStart(String location, byte[] content) {
+        Bundle bundle = install(location, content);
+        try {
+            bundle.start();
+        } catch (BundleException e) {
+            fail("Cannot start the bundle " + location + " : " + e.getMessage());
+        }
+        return bundle;
+    }
+
     /**
      * Installs and starts a bundle.
      * Fails if the bundle cannot be installed or an error occurs
@@ -136,6 +301,112 @@ public class BundleHelper extends AbstractHelper {
         return bundle;
     }
 
+    /**
+     * Updates a bundle only if its content has changed.
+     * The content hash is compared to the hash recorded when the bundle was installed or updated from its content
+     * by this helper. Bundles installed otherwise have no recorded hash, and are always updated. If the hashes
+     * differ, the bundle is updated, and the bundle and its dependents (and only them) are
+     * refreshed. The method then waits until the refreshed bundles have registered as many services as before the
+     * update. Unlike an uninstallation followed by an installation, the other wirings are kept.
+     * Fails if the bundle cannot be updated. If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundle  the bundle to update
+     * @param content the new content of the bundle
+     * @param timeout the timeout to wait for the refresh and the services, in milliseconds
+     * @return the update report
+     */
+    public UpdateReport updateIfChanged(Bundle bundle, byte[] content, long timeout) {
+        String hash = HashUtils.sha1(content);
+        if (hash.equals(getContentHash(bundle))) {
+            return new UpdateReport(false, Collections.<Bundle>emptyList(), 0, 0);
+        }
+
+        // Record the services registered by the bundles that are going to be refreshed.
+        Collection<Bundle> closure = getDependencyClosure(bundle);
+        Map<Bundle, Integer> expected = new LinkedHashMap<Bundle, Integer>();
+        for (Bundle b : closure) {
+            expected.put(b, countRegisteredServices(b));
+        }
+
+        long begin = System.currentTimeMillis();
+        try {
+            bundle.update(new ByteArrayInputStream(content));
+        } catch (BundleException e) {
+            fail("Cannot update the bundle " + bundle.getSymbolicName() + " : " + e.getMessage());
+        }
+        m_hashes.put(bundle.getBundleId(), hash);
+
+        if (!refreshPackages(Collections.singletonList(bundle), timeout)) {
+            System.err.println("Packages not refreshed after the update of " + bundle.getSymbolicName());
+        }
+        long updateTime = System.currentTimeMillis() - begin;
+
+        long remaining = Math.max(0, TimeUtils.timeout(timeout) - updateTime);
+        long recoveryTime = -1;
+        if (new ServiceRecoveryWaiter(expected).await(remaining)) {
+            recoveryTime = System.currentTimeMillis() - begin;
+        }
+        return new UpdateReport(true, new ArrayList<Bundle>(closure), updateTime, recoveryTime);
+    }
+
+    /**
+     * Updates a bundle only if its content has changed.
+     * The content is read from the given url.
+     *
+     * @param bundle  the bundle to update
+     * @param url     the url of the new content
+     * @param timeout the timeout to wait for the refresh and the services, in milliseconds
+     * @return the update report
+     * @see #updateIfChanged(Bundle, byte[], long)
+     */
+    public UpdateReport updateIfChanged(Bundle bundle, URL url, long timeout) {
+        try {
+            return updateIfChanged(bundle, readFully(url.openStream()), timeout);
+        } catch (IOException e) {
+            fail("Cannot read " + url.toExternalForm() + " : " + e.getMessage());
+        }
+        return null; // Can not happen
+    }
+
+    /**
+     * Gets the content hash of an installed bundle, as recorded when it was installed or updated by this helper.
+     * The bundle location is not read again: its content may have changed since the installation.
+     *
+     * @param bundle the bundle
+     * @return the SHA-1 hash, {@literal null} if unknown
+     */
+    private String getContentHash(Bundle bundle) {
+        return m_hashes.get(bundle.getBundleId());
+    }
+
+    private Collection<Bundle> getDependencyClosure(Bundle bundle) {
+        Bundle system = context.getBundle(0);
+        FrameworkWiring wiring = system == null ? null : system.adapt(FrameworkWiring.class);
+        if (wiring == null) {
+            return Collections.singletonList(bundle);
+        }
+        return wiring.getDependencyClosure(Collections.singletonList(bundle));
+    }
+
+    private static int countRegisteredServices(Bundle bundle) {
+        ServiceReference[] references = bundle.getRegisteredServices();
+        return references == null ? 0 : references.length;
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
     /**
      * Get the bundle by its id.
      *
@@ -172,6 +443,7 @@ public class BundleHelper extends AbstractHelper {
         try {
             bundle.uninstall();
             m_bundles.remove(bundle);
+            m_hashes.remove(bundle.getBundleId());
         } catch (BundleException e) {
             fail(e.getMessage());
         }
@@ -200,4 +472,329 @@ public class BundleHelper extends AbstractHelper {
             fail(e.getMessage());
         }
     }
+
+    /**
+     * Waits until the given bundle reaches one of the states of the given mask.
+     * The wait is driven by bundle events, so it returns as soon as the state is reached.
+     * Fails on timeout. If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundle    the bundle
+     * @param stateMask the expected states, such as {@code Bundle.ACTIVE} or {@code Bundle.RESOLVED | Bundle.ACTIVE}
+     * @param timeout   the timeout in milliseconds
+     * @return {@literal true} if the bundle has reached one of the expected states
+     */
+    public boolean waitForBundleState(Bundle bundle, int stateMask, long timeout) {
+        return waitForBundleState(bundle, stateMask, timeout, true);
+    }
+
+    /**
+     * Waits until the given bundle reaches one of the states of the given mask.
+     * The wait is driven by bundle events, so it returns as soon as the state is reached.
+     * If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundle    the bundle
+     * @param stateMask the expected states, such as {@code Bundle.ACTIVE} or {@code Bundle.RESOLVED | Bundle.ACTIVE}
+     * @param timeout   the timeout in milliseconds
+     * @param fail      fail the test if the state is not reached when the timeout is reached
+     * @return {@literal true} if the bundle has reached one of the expected states
+     */
+    public boolean waitForBundleState(Bundle bundle, int stateMask, long timeout, boolean fail) {
+        return waitForBundleStates(Collections.singletonList(bundle), stateMask, timeout, fail);
+    }
+
+    /**
+     * Waits until all the given bundles reach one of the states of the given mask.
+     * Fails on timeout. If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundles   the bundles
+     * @param stateMask the expected states
+     * @param timeout   the timeout in milliseconds
+     * @return {@literal true} if all the bundles have reached one of the expected states
+     */
+    public boolean waitForBundleStates(Collection<Bundle> bundles, int stateMask, long timeout) {
+        return waitForBundleStates(bundles, stateMask, timeout, true);
+    }
+
+    /**
+     * Waits until all the given bundles reach one of the states of the given mask.
+     * If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param bundles   the bundles
+     * @param stateMask the expected states
+     * @param timeout   the timeout in milliseconds
+     * @param fail      fail the test if the states are not reached when the timeout is reached
+     * @return {@literal true} if all the bundles have reached one of the expected states
+     */
+    public boolean waitForBundleStates(Collection<Bundle> bundles, int stateMask, long timeout, boolean fail) {
+        BundleStateWaiter waiter = new BundleStateWaiter(bundles, null, stateMask);
+        if (waiter.await(TimeUtils.timeout(timeout))) {
+            return true;
+        }
+
+        StringBuilder message = new StringBuilder("Timeout ... bundles not in the expected state after ")
+                .append(TimeUtils.timeout(timeout)).append(" ms :");
+        for (Bundle bundle : waiter.getPendingBundles()) {
+            message.append(" ").append(bundle.getSymbolicName()).append(" (").append(getStateAsString(bundle
+                    .getState())).append(")");
+        }
+        if (fail) {
+            fail(message.toString());
+        } else {
+            System.err.println(message);
+        }
+        return false;
+    }
+
+    /**
+     * Waits until a bundle with the given symbolic name reaches one of the states of the given mask.
+     * The bundle does not need to be installed when this method is called, making it suitable to wait for bundles
+     * deployed asynchronously (such as by fileinstall).
+     * Fails on timeout. If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param symbolicName the bundle symbolic name
+     * @param stateMask    the expected states
+     * @param timeout      the timeout in milliseconds
+     * @return the bundle
+     */
+    public Bundle waitForBundleState(String symbolicName, int stateMask, long timeout) {
+        return waitForBundleState(symbolicName, stateMask, timeout, true);
+    }
+
+    /**
+     * Waits until a bundle with the given symbolic name reaches one of the states of the given mask.
+     * The bundle does not need to be installed when this method is called, making it suitable to wait for bundles
+     * deployed asynchronously (such as by fileinstall).
+     * If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param symbolicName the bundle symbolic name
+     * @param stateMask    the expected states
+     * @param timeout      the timeout in milliseconds
+     * @param fail         fail the test if the state is not reached when the timeout is reached
+     * @return the bundle, {@literal null} if the state is not reached and fail is {@literal false}
+     */
+    public Bundle waitForBundleState(String symbolicName, int stateMask, long timeout, boolean fail) {
+        BundleStateWaiter waiter = new BundleStateWaiter(Collections.<Bundle>emptyList(), symbolicName, stateMask);
+        if (waiter.await(TimeUtils.timeout(timeout))) {
+            return waiter.getMatchingBundle();
+        }
+
+        String message = "Timeout ... no bundle " + symbolicName + " in the expected state after "
+                + TimeUtils.timeout(timeout) + " ms";
+        if (fail) {
+            fail(message);
+        } else {
+            System.err.println(message);
+        }
+        return null;
+    }
+
+    /**
+     * Gets a human readable representation of a bundle state.
+     *
+     * @param state the state
+     * @return the state name
+     */
+    public static String getStateAsString(int state) {
+        switch (state) {
+            case Bundle.UNINSTALLED:
+                return "UNINSTALLED";
+            case Bundle.INSTALLED:
+                return "INSTALLED";
+            case Bundle.RESOLVED:
+                return "RESOLVED";
+            case Bundle.STARTING:
+                return "STARTING";
+            case Bundle.STOPPING:
+                return "STOPPING";
+            case Bundle.ACTIVE:
+                return "ACTIVE";
+            default:
+                return "UNKNOWN (" + state + ")";
+        }
+    }
+
+    /**
+     * Reads a byte buffer without copying it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer m_buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return m_buffer.hasRemaining() ? m_buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (!m_buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, m_buffer.remaining());
+            m_buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return m_buffer.remaining();
+        }
+    }
+
+    /**
+     * Waits for bundle states. The listener is synchronous to also receive the STARTING, STOPPING and
+     * LAZY_ACTIVATION events. The condition is re-evaluated from the actual bundle states each time an event is
+     * received.
+     */
+    private class BundleStateWaiter extends EventWaiter implements SynchronousBundleListener {
+
+        private final List<Bundle> m_pending;
+        private final String m_symbolicName;
+        private final int m_mask;
+        private Bundle m_match;
+
+        private BundleStateWaiter(Collection<Bundle> bundles, String symbolicName, int mask) {
+            m_pending = new ArrayList<Bundle>(bundles);
+            m_symbolicName = symbolicName;
+            m_mask = mask;
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            signal();
+        }
+
+        @Override
+        protected void register() {
+            context.addBundleListener(this);
+        }
+
+        @Override
+        protected void unregister() {
+            context.removeBundleListener(this);
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            for (int i = m_pending.size() - 1; i >= 0; i--) {
+                if ((m_pending.get(i).getState() & m_mask) != 0) {
+                    m_pending.remove(i);
+                }
+            }
+            if (m_symbolicName != null && m_match == null) {
+                for (Bundle bundle : context.getBundles()) {
+                    if (m_symbolicName.equals(bundle.getSymbolicName()) && (bundle.getState() & m_mask) != 0) {
+                        m_match = bundle;
+                        break;
+                    }
+                }
+                return m_pending.isEmpty() && m_match != null;
+            }
+            return m_pending.isEmpty();
+        }
+
+        private List<Bundle> getPendingBundles() {
+            return m_pending;
+        }
+
+        private Bundle getMatchingBundle() {
+            return m_match;
+        }
+    }
+
+    /**
+     * Waits until the given bundles have registered at least the given number of services.
+     */
+    private class ServiceRecoveryWaiter extends EventWaiter implements ServiceListener {
+
+        private final Map<Bundle, Integer> m_expected;
+
+        private ServiceRecoveryWaiter(Map<Bundle, Integer> expected) {
+            m_expected = expected;
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            signal();
+        }
+
+        @Override
+        protected void register() {
+            context.addServiceListener(this);
+        }
+
+        @Override
+        protected void unregister() {
+            context.removeServiceListener(this);
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            for (Map.Entry<Bundle, Integer> entry : m_expected.entrySet()) {
+                if (countRegisteredServices(entry.getKey()) < entry.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The result of {@link #updateIfChanged(Bundle, byte[], long)}.
+     */
+    public static class UpdateReport {
+
+        private final boolean m_updated;
+        private final List<Bundle> m_refreshed;
+        private final long m_updateTime;
+        private final long m_recoveryTime;
+
+        private UpdateReport(boolean updated, List<Bundle> refreshed, long updateTime, long recoveryTime) {
+            m_updated = updated;
+            m_refreshed = refreshed;
+            m_updateTime = updateTime;
+            m_recoveryTime = recoveryTime;
+        }
+
+        /**
+         * @return {@literal true} if the bundle was updated, {@literal false} if the content was unchanged.
+         */
+        public boolean isUpdated() {
+            return m_updated;
+        }
+
+        /**
+         * @return the bundles refreshed by the update: the updated bundle and its dependents.
+         */
+        public List<Bundle> getRefreshedBundles() {
+            return m_refreshed;
+        }
+
+        /**
+         * @return the time spent updating the bundle and refreshing its dependents, in milliseconds.
+         */
+        public long getUpdateTime() {
+            return m_updateTime;
+        }
+
+        /**
+         * @return the time until the refreshed bundles registered their services again, in milliseconds, counted
+         * from the beginning of the update. -1 if the services did not come back before the timeout.
+         */
+        public long getRecoveryTime() {
+            return m_recoveryTime;
+        }
+
+        @Override
+        public String toString() {
+            if (!m_updated) {
+                return "Bundle unchanged";
+            }
+            return "Bundle updated, " + m_refreshed.size() + " bundle(s) refreshed in " + m_updateTime + " ms, "
+                    + (m_recoveryTime < 0 ? "services not recovered" : "services recovered in " + m_recoveryTime
+                    + " ms");
+        }
+    }
 }
@@ -16,23 +16,31 @@ package org.ow2.chameleon.testing.helpers;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+
+import static org.junit.Assert.fail;
 
 /**
  * Helper class initializing a chameleon.
  * This class is used with the {@link ChameleonOption}. The helper deploys instances (.cfg files)
- * from the runtime and application folders of the targeted chameleon.
+ * from the runtime and application folders of the targeted chameleon, and waits until the configuration updates are
+ * dispatched by the Configuration Admin.
  *
  * <code>
  *  @RunWith(JUnit4TestRunner.class)
@@ -73,7 +81,22 @@ public class ChameleonHelper {
 
     private List<Configuration> m_configurations = new ArrayList<Configuration>();
 
+    private ConfigurationAdminTracker m_tracker;
+
     public ChameleonHelper(BundleContext context) throws IOException {
+        this(context, 0);
+    }
+
+    /**
+     * Creates the helper and deploys the configurations. The .cfg files are parsed concurrently, then the
+     * configurations are updated in a batch, and the helper waits until the Configuration Admin has dispatched
+     * all the updates. Fails if the updates are not dispatched before the timeout.
+     *
+     * @param context the bundle context
+     * @param timeout the timeout in milliseconds, 0 for the default timeout (10s)
+     * @throws IOException if a .cfg file cannot be read or a configuration cannot be updated
+     */
+    public ChameleonHelper(BundleContext context, long timeout) throws IOException {
         m_configurations.clear();
 
         // Look for all cfg file
@@ -86,74 +109,106 @@ public class ChameleonHelper {
         File chameleonRuntime = new File(root, "runtime"); //TODO Works only if this is the default directory
         File chameleonApp = new File(root, "application"); //TODO Works only if this is the default directory
 
-        ConfigurationAdmin ca = getConfigurationAdmin(context);
+        m_tracker = new ConfigurationAdminTracker(context);
+        ConfigurationAdmin ca = m_tracker.waitFor(TimeUtils.timeout(3000));
         if (ca != null) {
-            if (chameleonRuntime.isDirectory()) {
-                manageConfiguration(chameleonRuntime, ca);
-            }
-            if (chameleonApp.isDirectory()) {
-                manageConfiguration(chameleonApp, ca);
+            List<File> configurations = new ArrayList<File>();
+            configurations.addAll(listConfigurations(chameleonRuntime));
+            configurations.addAll(listConfigurations(chameleonApp));
+            if (! configurations.isEmpty()) {
+                manageConfigurations(context, ca, configurations, timeout);
             }
         }
 
     }
 
-    private void manageConfiguration(File chameleonRuntime,
-            ConfigurationAdmin ca) throws IOException {
-        File[] configurations = chameleonRuntime.listFiles(new FileFilter() {
+    private List<File> listConfigurations(File directory) {
+        File[] configurations = directory.listFiles(new FileFilter() {
 
             public boolean accept(File file) {
                 return (file.getName().endsWith(".cfg"));
             }
         });
+        if (configurations == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(configurations);
+        return Arrays.asList(configurations);
+    }
 
-        parseConfiguration(ca, configurations);
+    private void manageConfigurations(BundleContext context, ConfigurationAdmin ca, List<File> configs,
+            long timeout) throws IOException {
+        List<Map<String, String>> properties = parseConfigurations(configs);
 
-    }
+        // The listener is registered before the first update, so no event can be missed.
+        ConfigurationEventWaiter waiter = new ConfigurationEventWaiter(context, ConfigurationEvent.CM_UPDATED);
+        waiter.register();
+        try {
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < configs.size(); i++) {
+                String[] pid = parsePid(configs.get(i).getName());
+                Hashtable ht = new Hashtable();
+                ht.putAll(properties.get(i));
+                Configuration config = getConfiguration(pid[0], pid[1], ca);
+                if (config.getBundleLocation() != null) {
+                    config.setBundleLocation(null);
+                }
+                waiter.expect(config.getPid());
+                try {
+                    config.update(ht);
+                } catch (IOException e) {
+                    waiter.cancel(config.getPid());
+                    throw e;
+                }
+                m_configurations.add(config);
+            }
 
-    private void parseConfiguration(ConfigurationAdmin ca, File[] configs)
-            throws IOException {
-        for (File f : configs) {
-            Properties p = new Properties();
-            InputStream in = new FileInputStream(f);
-            p.load(in);
-            in.close();
-            String[] pid = parsePid(f.getName());
-            Hashtable ht = new Hashtable();
-            ht.putAll(p);
-            Configuration config = getConfiguration(pid[0], pid[1], ca);
-            if (config.getBundleLocation() != null) {
-                config.setBundleLocation(null);
+            if (! waiter.await(TimeUtils.timeout(timeout))) {
+                fail("Timeout ... configuration updates not dispatched after " + TimeUtils.timeout(timeout)
+                        + " ms : " + waiter.getPendingPids());
             }
-            config.update(ht);
-            m_configurations.add(config);
+            System.out.println(configs.size() + " chameleon configurations applied in "
+                    + (System.currentTimeMillis() - begin) + " ms");
+        } finally {
+            waiter.unregister();
         }
-
     }
 
     /**
-     * Gets the configuration admin service.
-     * @param context the bundle context.
-     * @return the Configuration Admin service object
-     * @throws Exception if the configuration admin is unavailable.
+     * Parses the .cfg files concurrently.
+     *
+     * @return the properties of each file, in the same order
      */
-    private static ConfigurationAdmin getConfigurationAdmin(BundleContext context) {
-
-        OSGiHelper helper = new OSGiHelper(context);
+    private List<Map<String, String>> parseConfigurations(List<File> configs) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(configs.size(), Runtime.getRuntime().availableProcessors()));
         try {
-            helper.waitForService(ConfigurationAdmin.class.getName(), null, 3000);
-        } catch (Throwable e) {
-            // ignore it.
-        }
-
-        // Should be there !
-        ServiceReference ref = context
-                .getServiceReference(ConfigurationAdmin.class.getName());
-        if (ref != null) {
-            return (ConfigurationAdmin) context.getService(ref);
+            List<Future<Map<String, String>>> results = new ArrayList<Future<Map<String, String>>>();
+            for (final File config : configs) {
+                results.add(executor.submit(new Callable<Map<String, String>>() {
+                    public Map<String, String> call() throws IOException {
+                        return PropertiesLoader.load(config);
+                    }
+                }));
+            }
+            List<Map<String, String>> properties = new ArrayList<Map<String, String>>();
+            for (int i = 0; i < configs.size(); i++) {
+                try {
+                    properties.add(results.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + configs.get(i).getAbsolutePath());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException("Cannot read " + configs.get(i).getAbsolutePath(), e.getCause());
+                }
+            }
+            return properties;
+        } finally {
+            executor.shutdownNow();
         }
-
-        return null;
     }
 
     /**
@@ -203,6 +258,9 @@ public class ChameleonHelper {
             }
         }
         m_configurations.clear();
+        if (m_tracker != null) {
+            m_tracker.close();
+        }
     }
 
 
@@ -22,11 +22,14 @@ import org.ow2.chameleon.testing.helpers.constants.Constants;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.*;
-import java.util.jar.JarFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -67,6 +70,16 @@ import java.util.jar.JarFile;
  * Chameleon properties and system properties can be overridden / extended using {@link ChameleonOption#chameleonProperties(Hashtable)}
  * and  {@link ChameleonOption#chameleonSystemProperties(Hashtable)}
  *
+ * Bundles are started level by level: core bundles at the default provisioning level of Pax Exam (3), then
+ * runtime and application bundles at the last level before the test bundle (4). The levels can be changed using {@link ChameleonOption#startLevels(int, int, int)}. The start level
+ * of specific bundles can be set in a descriptor (start-levels.properties by default) associating a bundle symbolic
+ * name or a jar file name to a start level.
+ *
+ * Pax Exam only leaves two levels between its system bundles (2) and the test bundle (5), and the level of the test
+ * bundle cannot be raised. So, by default, the runtime and application bundles share the same level and start
+ * together. A strict core &lt; runtime &lt; application order requires a level for the core bundles shared with the
+ * Pax Exam system bundles: {@code startLevels(2, 3, 4)}.
+ *
  */
 public class ChameleonOption implements CompositeOption {
 
@@ -80,6 +93,11 @@ public class ChameleonOption implements CompositeOption {
     private File m_chameleonSystemPropsFile;
     private Hashtable<String, String> m_chameleonSystemProperties;
     private String m_chameleonSystemPropsName = "system.properties";
+    private int m_coreStartLevel = org.ops4j.pax.exam.Constants.START_LEVEL_DEFAULT_PROVISION;
+    private int m_runtimeStartLevel = org.ops4j.pax.exam.Constants.START_LEVEL_TEST_BUNDLE - 1;
+    private int m_applicationStartLevel = org.ops4j.pax.exam.Constants.START_LEVEL_TEST_BUNDLE - 1;
+    private File m_startLevelsFile;
+    private String m_startLevelsName = "start-levels.properties";
 
     public static ChameleonOption chameleon() {
         return new ChameleonOption();
@@ -148,6 +166,28 @@ public class ChameleonOption implements CompositeOption {
         return this;
     }
 
+    /**
+     * Sets the start levels of the bundles of the core, runtime and application directories. They should be higher
+     * than the start level of the system bundles (2) and lower than the start level of the test bundle (5). Only 3
+     * and 4 meet both conditions, so three distinct levels require the core bundles to start with the system
+     * bundles: {@code startLevels(2, 3, 4)}.
+     */
+    public ChameleonOption startLevels(int core, int runtime, int application) {
+        m_coreStartLevel = core;
+        m_runtimeStartLevel = runtime;
+        m_applicationStartLevel = application;
+        return this;
+    }
+
+    /**
+     * Sets the descriptor overriding the start level of specific bundles. Keys are bundle symbolic names or jar
+     * file names, values are start levels.
+     */
+    public ChameleonOption startLevels(File descriptor) {
+        m_startLevelsFile = descriptor;
+        return this;
+    }
+
     public Option[] getOptions() {
         Option[] options = new Option[0];
         // First we need to be sure it's a chameleon
@@ -166,19 +206,27 @@ public class ChameleonOption implements CompositeOption {
 
         if (! chameleonCore.isDirectory()) {
             throw new IllegalStateException("Invalid chameleon core directory: " + chameleonCore.getAbsolutePath());
-        } else {
-            options = addChameleonCoreOptions(chameleonCore, options);
-            options = addBundles(chameleonCore, options);
         }
 
-        if (chameleonRuntime.isDirectory()) {
-            options = addBundles(chameleonRuntime, options);
-        }
+        // Only new or changed jars are opened, the others are found in the index.
+        ManifestIndex index = new ManifestIndex(new File(ManifestIndex.INDEX_PATH));
+        File[][] jars = scan(index, chameleonCore, chameleonRuntime, chameleonApp);
+        index.save();
 
-        if (chameleonApp.isDirectory()) {
-            options = addBundles(chameleonApp, options);
+        Hashtable<String, String> startLevels = new Hashtable<String, String>();
+        File defaultStartLevels = new File(m_chameleonBaseDir, m_startLevelsName);
+        if (defaultStartLevels.isFile()) {
+            loadPropertiesFromFile(defaultStartLevels, startLevels);
+        }
+        if (m_startLevelsFile != null && m_startLevelsFile.isFile()) {
+            loadPropertiesFromFile(m_startLevelsFile, startLevels);
         }
 
+        options = addChameleonCoreOptions(chameleonCore, jars[0], options);
+        options = addBundles(jars[0], m_coreStartLevel, startLevels, index, options);
+        options = addBundles(jars[1], m_runtimeStartLevel, startLevels, index, options);
+        options = addBundles(jars[2], m_applicationStartLevel, startLevels, index, options);
+
         File chameleonDeploy = new File(m_chameleonBaseDir, m_deploy);
         if (chameleonDeploy.isDirectory()) {
             options = OptionUtils.combine(options,
@@ -217,19 +265,19 @@ public class ChameleonOption implements CompositeOption {
         return options;
     }
 
-    private Option[] addChameleonCoreOptions(File chameleonCore,
+    private Option[] addChameleonCoreOptions(File chameleonCore, File[] coreJars,
             Option[] options) {
-        String slf4jApi = getVersionForFile(chameleonCore, "slf4j-api");
+        String slf4jApi = getVersionForFile(coreJars, "slf4j-api");
         if (slf4jApi == null) {
             throw new IllegalStateException("Cannot extract slf4j-api version");
         }
 
-        String logback = getVersionForFile(chameleonCore, "logback-core");
+        String logback = getVersionForFile(coreJars, "logback-core");
         if (logback == null) {
             throw new IllegalStateException("Cannot extract logback-core version");
         }
 
-        String core = getVersionForFile(chameleonCore, "core");
+        String core = getVersionForFile(coreJars, "core");
         if (core == null) {
             throw new IllegalStateException("Cannot extract chameleon core version");
         }
@@ -258,36 +306,147 @@ public class ChameleonOption implements CompositeOption {
 
     }
 
-    private String getVersionForFile(File directory, final String fileName) {
-        File[] files = directory.listFiles(new FileFilter() {
+    /**
+     * Extracts the version of the given artifact from the name of its jar. If several versions are available, the
+     * highest one is returned.
+     */
+    private String getVersionForFile(File[] jars, String fileName) {
+        String highest = null;
+        for (File file : jars) {
+            String name = file.getName();
+            if (name.startsWith(fileName + "-") && name.length() > fileName.length() + 5
+                    && Character.isDigit(name.charAt(fileName.length() + 1))) {
+                String version = name.substring(fileName.length() + 1, name.length() - 4); // 4 = .jar
+                if (highest == null || compareVersions(version, highest) > 0) {
+                    highest = version;
+                }
+            }
+        }
+        return highest;
+    }
 
-            public boolean accept(File file) {
-                return file.getName().startsWith(fileName + "-")  && file.getName().endsWith(".jar");
+    /**
+     * Compares two versions, segment by segment. Numeric segments are compared as numbers and rank above
+     * qualifiers, so 1.0.10 &gt; 1.0.9 and 1.0 &gt; 1.0-SNAPSHOT.
+     */
+    static int compareVersions(String v1, String v2) {
+        String[] s1 = v1.split("[.-]");
+        String[] s2 = v2.split("[.-]");
+        for (int i = 0; i < Math.max(s1.length, s2.length); i++) {
+            String a = i < s1.length ? s1[i] : null;
+            String b = i < s2.length ? s2[i] : null;
+            if (a == null) {
+                return isNumeric(b) ? -1 : 1;
+            }
+            if (b == null) {
+                return isNumeric(a) ? 1 : -1;
+            }
+            int result;
+            if (isNumeric(a) && isNumeric(b)) {
+                a = a.replaceFirst("^0+(?=.)", "");
+                b = b.replaceFirst("^0+(?=.)", "");
+                result = a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+            } else if (isNumeric(a)) {
+                result = 1;
+            } else if (isNumeric(b)) {
+                result = -1;
+            } else {
+                result = a.compareToIgnoreCase(b);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isNumeric(String segment) {
+        return segment.matches("\\d+");
+    }
+
+    /**
+     * Lists the jars of the given directories and reads the manifests of the new or changed jars concurrently.
+     * The jars of each directory are sorted by name, so the provisioning order does not depend on the file system.
+     *
+     * @return the jars of each directory, empty if the directory does not exist
+     */
+    private File[][] scan(final ManifestIndex index, File... directories) {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<File[]>> listings = new ArrayList<Future<File[]>>();
+            for (final File directory : directories) {
+                listings.add(executor.submit(new Callable<File[]>() {
+                    public File[] call() {
+                        return listJars(directory);
+                    }
+                }));
             }
-        });
 
-        if (files.length > 0) {
-            String version = files[0].getName().substring(fileName.length() + 1, files[0].getName().length() - 4); // 4 = .jar
-            return version;
-        } else {
-            return null;
+            File[][] jars = new File[directories.length][];
+            List<Future<ManifestIndex.Entry>> entries = new ArrayList<Future<ManifestIndex.Entry>>();
+            for (int i = 0; i < directories.length; i++) {
+                jars[i] = get(listings.get(i));
+                for (final File jar : jars[i]) {
+                    entries.add(executor.submit(new Callable<ManifestIndex.Entry>() {
+                        public ManifestIndex.Entry call() {
+                            return index.get(jar);
+                        }
+                    }));
+                }
+            }
+            for (Future<ManifestIndex.Entry> entry : entries) {
+                get(entry);
+            }
+            return jars;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private Option[] addBundles(File chameleonCore, Option[] options) {
-        File[] files = chameleonCore.listFiles(new FileFilter() {
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning the chameleon");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot scan the chameleon", e.getCause());
+        }
+    }
+
+    private static File[] listJars(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
 
             public boolean accept(File file) {
-                return file.getName().endsWith(".jar")
-                    && isBundle(file)
-                    && ! isExcluded(file);
+                return file.getName().endsWith(".jar") && file.isFile();
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName());
             }
         });
+        return files;
+    }
 
+    private Option[] addBundles(File[] jars, int startLevel, Map<String, String> startLevels, ManifestIndex index,
+            Option[] options) {
         List<Option> newOptions = new ArrayList<Option>();
-        for (File f : files) {
+        for (File f : jars) {
+            ManifestIndex.Entry entry = index.get(f);
+            if (isExcluded(f) || ! entry.isBundle()) {
+                continue;
+            }
+            String level = startLevels.get(f.getName());
+            if (level == null && entry.getSymbolicName() != null) {
+                level = startLevels.get(entry.getSymbolicName());
+            }
             try {
-                Option opt = CoreOptions.provision(f.toURI().toURL().toExternalForm());
+                Option opt = CoreOptions.bundle(f.toURI().toURL().toExternalForm())
+                        .startLevel(getStartLevel(level, startLevel, f));
                 newOptions.add(opt);
 
             } catch (MalformedURLException e) {
@@ -298,16 +457,21 @@ public class ChameleonOption implements CompositeOption {
         return OptionUtils.combine(options, newOptions.toArray(new Option[newOptions.size()]));
     }
 
+    private int getStartLevel(String level, int defaultLevel, File file) {
+        if (level == null) {
+            return defaultLevel;
+        }
+        try {
+            return Integer.parseInt(level.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid start level for " + file.getName() + " : " + level);
+            return defaultLevel;
+        }
+    }
+
     private void loadPropertiesFromFile(File file, Hashtable<String, String> to) {
         try {
-            Properties props = new Properties();
-            FileReader reader = new FileReader(file);
-            props.load(reader);
-            reader.close();
-            Set<String> names = props.stringPropertyNames();
-            for (String k : names) {
-                to.put(k, props.get(k).toString());
-            }
+            to.putAll(PropertiesLoader.load(file));
         } catch (IOException e) {
             System.err.println("Cannot read " + file.getAbsolutePath());
             e.printStackTrace();
@@ -315,11 +479,12 @@ public class ChameleonOption implements CompositeOption {
     }
 
     private Option[] addProperties(Option[] options, Hashtable<String, String> props) {
-        Set<String> names = props.keySet();
-        Option[] newOptions = options;
-        for (String n : names) {
-            String v = props.get(n);
-            newOptions = OptionUtils.combine(newOptions, CoreOptions.systemProperty(n).value(v));
+        // Build the array in one pass, sorted by name so the options are always the same.
+        Option[] newOptions = new Option[options.length + props.size()];
+        System.arraycopy(options, 0, newOptions, 0, options.length);
+        int i = options.length;
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(props).entrySet()) {
+            newOptions[i++] = CoreOptions.systemProperty(entry.getKey()).value(entry.getValue());
         }
         return newOptions;
     }
@@ -335,15 +500,4 @@ public class ChameleonOption implements CompositeOption {
                 || name.startsWith("org.apache.felix.ipojo.arch-"));
     }
 
-    private boolean isBundle(File file) {
-        try {
-            JarFile jar = new JarFile(file);
-            return jar.getManifest().getMainAttributes()
-                .getValue("Bundle-ManifestVersion") != null;
-        } catch (IOException e) {
-            // Ignore.
-        }
-        return false;
-    }
-
 }
@@ -15,8 +15,32 @@
 package org.ow2.chameleon.testing.helpers;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.fail;
 
 /**
  * A couple of method to ease interactions with the configuration admin.
@@ -24,21 +48,38 @@ import org.osgi.service.cm.ConfigurationAdmin;
 public class ConfigAdminHelper {
 
     private final BundleContext context;
-    private final OSGiHelper osgi;
+    private final ConfigurationAdminTracker m_tracker;
 
     public ConfigAdminHelper(BundleContext context) {
         this.context = context;
-        this.osgi = new OSGiHelper(context);
+        this.m_tracker = new ConfigurationAdminTracker(context);
     }
 
     public void dispose() {
-        osgi.dispose();
+        m_tracker.close();
     }
 
+    /**
+     * Deletes all the configurations and waits until the Configuration Admin has dispatched the deletions.
+     * It returns immediately if there are no configurations. If the deletions are not dispatched within 10s, the
+     * pending configurations are reported, but the test does not fail.
+     */
     public void deleteAllConfigurations() {
+        deleteAllConfigurations(0);
+    }
+
+    /**
+     * Deletes all the configurations and waits until the Configuration Admin has dispatched the deletions
+     * (CM_DELETED events). It returns immediately if there are no configurations. If the deletions are not
+     * dispatched before the timeout, the pending configurations are reported, but the test does not fail.
+     *
+     * @param timeout the timeout in milliseconds, 0 for the default timeout (10s)
+     * @return {@literal true} if all deletions have been dispatched
+     */
+    public boolean deleteAllConfigurations(long timeout) {
         ConfigurationAdmin admin = getConfigurationAdmin();
         if (admin == null) {
-            return;
+            return true;
         }
 
         Configuration[] configurations = null;
@@ -48,18 +89,364 @@ public class ConfigAdminHelper {
             // Ignore it.
         }
 
-        if (configurations != null) {
+        if (configurations == null || configurations.length == 0) {
+            return true;
+        }
+
+        long begin = System.currentTimeMillis();
+        // The listener is registered before the first deletion, so no event can be missed.
+        ConfigurationEventWaiter waiter = new ConfigurationEventWaiter(context, ConfigurationEvent.CM_DELETED);
+        waiter.register();
+        try {
+            List<String> failures = new ArrayList<String>();
             for (Configuration configuration : configurations) {
+                String pid = configuration.getPid();
+                waiter.expect(pid);
                 try {
-                    System.out.println("Deleting configuration " + formatConfiguration(configuration));
                     configuration.delete();
-                    System.out.println("Configuration " + formatConfiguration(configuration) + " deleted");
                 } catch (Exception e) {
-                    // Ignore it.
+                    // Already deleted, or the deletion failed: the configuration object cannot be used anymore.
+                    waiter.cancel(pid);
+                    failures.add(pid);
                 }
             }
-            // Wait a bit until all configurations are deleted.
-            TimeUtils.grace(1000);
+
+            boolean dispatched = waiter.await(TimeUtils.timeout(timeout));
+            StringBuilder summary = new StringBuilder()
+                    .append(configurations.length - failures.size()).append(" configurations deleted in ")
+                    .append(System.currentTimeMillis() - begin).append(" ms");
+            if (!failures.isEmpty()) {
+                summary.append(", cannot delete ").append(failures);
+            }
+            if (!dispatched) {
+                summary.append(", deletion not dispatched for ").append(waiter.getPendingPids());
+            }
+            System.out.println(summary);
+            return dispatched;
+        } finally {
+            waiter.unregister();
+        }
+    }
+
+    /**
+     * Captures the PID and properties of all the configurations, to restore them later with
+     * {@link #restore(ConfigurationSnapshot)}.
+     *
+     * @return the snapshot
+     */
+    public ConfigurationSnapshot snapshot() {
+        ConfigurationSnapshot snapshot = new ConfigurationSnapshot();
+        for (Configuration configuration : listConfigurations()) {
+            Map<String, Object> properties = toMap(configuration.getProperties());
+            if (properties != null) {
+                snapshot.m_configurations.put(configuration.getPid(),
+                        new ConfigurationSnapshot.Entry(configuration.getFactoryPid(), properties));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Restores the configurations captured by the given snapshot, changing only the difference. New configurations
+     * are deleted, missing ones are recreated, changed ones are updated, and the unchanged ones are not touched. It
+     * then waits until the Configuration Admin has dispatched the changes. Recreated factory configurations get a
+     * new PID. If the changes are not dispatched within 10s, the pending configurations are reported, but the test
+     * does not fail.
+     *
+     * @param snapshot the snapshot
+     * @return {@literal true} if all the changes have been dispatched
+     */
+    public boolean restore(ConfigurationSnapshot snapshot) {
+        return restore(snapshot, 0);
+    }
+
+    /**
+     * Restores the configurations captured by the given snapshot, changing only the difference.
+     *
+     * @param snapshot the snapshot
+     * @param timeout  the timeout in milliseconds, 0 for the default timeout (10s)
+     * @return {@literal true} if all the changes have been dispatched
+     * @see #restore(ConfigurationSnapshot)
+     */
+    public boolean restore(ConfigurationSnapshot snapshot, long timeout) {
+        ConfigurationAdmin admin = getConfigurationAdmin();
+        if (admin == null) {
+            return true;
+        }
+
+        long begin = System.currentTimeMillis();
+        // The listeners are registered before the first change, so no event can be missed.
+        ConfigurationEventWaiter deletions = new ConfigurationEventWaiter(context, ConfigurationEvent.CM_DELETED);
+        ConfigurationEventWaiter updates = new ConfigurationEventWaiter(context, ConfigurationEvent.CM_UPDATED);
+        deletions.register();
+        updates.register();
+        try {
+            int deleted = 0;
+            int recreated = 0;
+            int updated = 0;
+            int unchanged = 0;
+            List<String> failures = new ArrayList<String>();
+            Map<String, ConfigurationSnapshot.Entry> missing =
+                    new LinkedHashMap<String, ConfigurationSnapshot.Entry>(snapshot.m_configurations);
+
+            for (Configuration configuration : listConfigurations()) {
+                String pid = configuration.getPid();
+                ConfigurationSnapshot.Entry entry = missing.remove(pid);
+                try {
+                    if (entry == null) {
+                        deletions.expect(pid);
+                        configuration.delete();
+                        deleted++;
+                    } else if (!entry.m_properties.equals(toMap(configuration.getProperties()))) {
+                        updates.expect(pid);
+                        configuration.update(toDictionary(entry.m_properties));
+                        updated++;
+                    } else {
+                        unchanged++;
+                    }
+                } catch (Exception e) {
+                    // Deleted concurrently, or the operation failed: the configuration object cannot be used anymore.
+                    deletions.cancel(pid);
+                    updates.cancel(pid);
+                    failures.add(pid);
+                }
+            }
+
+            for (Map.Entry<String, ConfigurationSnapshot.Entry> entry : missing.entrySet()) {
+                String factoryPid = entry.getValue().m_factoryPid;
+                try {
+                    Configuration configuration = factoryPid == null
+                            ? admin.getConfiguration(entry.getKey(), null)
+                            : admin.createFactoryConfiguration(factoryPid, null);
+                    updates.expect(configuration.getPid());
+                    try {
+                        configuration.update(toDictionary(entry.getValue().m_properties));
+                    } catch (IOException e) {
+                        updates.cancel(configuration.getPid());
+                        throw e;
+                    }
+                    recreated++;
+                } catch (Exception e) {
+                    failures.add(entry.getKey());
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + TimeUtils.timeout(timeout);
+            boolean dispatched = deletions.await(Math.max(0, deadline - System.currentTimeMillis()));
+            dispatched = updates.await(Math.max(0, deadline - System.currentTimeMillis())) && dispatched;
+
+            StringBuilder summary = new StringBuilder("Configurations restored in ")
+                    .append(System.currentTimeMillis() - begin).append(" ms : ")
+                    .append(deleted).append(" deleted, ")
+                    .append(recreated).append(" recreated, ")
+                    .append(updated).append(" updated, ")
+                    .append(unchanged).append(" unchanged");
+            if (!failures.isEmpty()) {
+                summary.append(", cannot restore ").append(failures);
+            }
+            if (!dispatched) {
+                List<String> pending = new ArrayList<String>(deletions.getPendingPids());
+                pending.addAll(updates.getPendingPids());
+                summary.append(", changes not dispatched for ").append(pending);
+            }
+            System.out.println(summary);
+            return dispatched;
+        } finally {
+            deletions.unregister();
+            updates.unregister();
+        }
+    }
+
+    private Configuration[] listConfigurations() {
+        ConfigurationAdmin admin = getConfigurationAdmin();
+        if (admin == null) {
+            return new Configuration[0];
+        }
+        try {
+            Configuration[] configurations = admin.listConfigurations(null);
+            return configurations == null ? new Configuration[0] : configurations;
+        } catch (Exception e) {
+            return new Configuration[0];
+        }
+    }
+
+    /**
+     * Copies the properties of a configuration, without the properties set by the Configuration Admin. Arrays are
+     * wrapped so they are compared by content.
+     */
+    private static Map<String, Object> toMap(Dictionary properties) {
+        if (properties == null) {
+            return null;
+        }
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (Enumeration keys = properties.keys(); keys.hasMoreElements(); ) {
+            String key = (String) keys.nextElement();
+            if (!key.equals(Constants.SERVICE_PID) && !key.equals(ConfigurationAdmin.SERVICE_FACTORYPID)
+                    && !key.equals(ConfigurationAdmin.SERVICE_BUNDLELOCATION)) {
+                Object value = properties.get(key);
+                map.put(key, value.getClass().isArray() ? new ArrayValue(value) : value);
+            }
+        }
+        return map;
+    }
+
+    private static Dictionary toDictionary(Map<String, Object> properties) {
+        Hashtable<String, Object> dictionary = new Hashtable<String, Object>();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            dictionary.put(entry.getKey(), value instanceof ArrayValue ? ((ArrayValue) value).copy() : value);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Creates factory configurations with the same properties, and waits until the consumer has registered a
+     * service for each of them.
+     *
+     * @param factoryPid the factory PID
+     * @param count      the number of configurations
+     * @param template   the properties of the configurations
+     * @param timeout    the timeout in milliseconds, 0 for the default timeout (10s)
+     * @return the report
+     * @see #createFactoryConfigurations(String, int, PropertiesGenerator, long)
+     */
+    public BulkCreationReport createFactoryConfigurations(String factoryPid, int count, final Dictionary template,
+            long timeout) {
+        return createFactoryConfigurations(factoryPid, count, new PropertiesGenerator() {
+            public Dictionary generate(int index) {
+                Hashtable<Object, Object> properties = new Hashtable<Object, Object>();
+                for (Enumeration keys = template.keys(); keys.hasMoreElements(); ) {
+                    Object key = keys.nextElement();
+                    properties.put(key, template.get(key));
+                }
+                return properties;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Creates factory configurations, and waits until the consumer has registered a service for each of them. The
+     * configurations are submitted without waiting for the previous ones to be applied. A configuration is
+     * considered applied when a service carrying its PID (as {@literal service.pid} or {@literal instance.name}) is
+     * registered or modified, as iPOJO instances do. Fails if the services are not registered before the timeout.
+     * The created configurations are available from the report.
+     *
+     * @param factoryPid the factory PID
+     * @param count      the number of configurations
+     * @param generator  the generator of the properties of each configuration
+     * @param timeout    the timeout in milliseconds, 0 for the default timeout (10s)
+     * @return the report
+     */
+    public BulkCreationReport createFactoryConfigurations(String factoryPid, int count, PropertiesGenerator generator,
+            long timeout) {
+        ConfigurationAdmin admin = getConfigurationAdmin();
+        if (admin == null) {
+            fail("No configuration admin");
+        }
+
+        BulkCreationWaiter waiter = new BulkCreationWaiter(count);
+        // The listener is registered before the first update, so no registration can be missed.
+        waiter.register();
+        try {
+            long begin = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                try {
+                    Configuration configuration = admin.createFactoryConfiguration(factoryPid, null);
+                    Dictionary properties = generator.generate(i);
+                    waiter.submitted(configuration);
+                    configuration.update(properties);
+                } catch (IOException e) {
+                    fail("Cannot create the factory configuration #" + i + " of " + factoryPid + " : "
+                            + e.getMessage());
+                }
+            }
+            long submitted = System.nanoTime();
+            boolean applied = waiter.await(TimeUtils.timeout(timeout));
+            BulkCreationReport report = new BulkCreationReport(waiter.m_configurations, waiter.m_latencies,
+                    submitted - begin, System.nanoTime() - begin);
+            if (!applied) {
+                fail("Timeout ... " + waiter.getPendingPids().size() + " of " + count + " factory configurations of "
+                        + factoryPid + " not applied after " + TimeUtils.timeout(timeout) + " ms : "
+                        + waiter.getPendingPids());
+            }
+            System.out.println(report);
+            return report;
+        } finally {
+            waiter.unregister();
+        }
+    }
+
+    /**
+     * Updates a configuration and waits until its consumer has applied it: a service carrying the PID of the
+     * configuration (as {@literal service.pid} or {@literal instance.name}) is registered or modified. This is the
+     * case of consumers propagating their configuration to their service properties, such as iPOJO instances.
+     * Fails if the configuration is not applied before the timeout. If timeout is set to 0, it sets the timeout
+     * to 10s.
+     *
+     * @param configuration the configuration
+     * @param properties    the new properties
+     * @param timeout       the timeout in milliseconds
+     * @return the time elapsed until the configuration is applied, in milliseconds
+     */
+    public long updateAndWait(Configuration configuration, Dictionary properties, long timeout) {
+        return updateAndWait(configuration, properties, AppliedSignal.SERVICE_PROPERTIES, timeout);
+    }
+
+    /**
+     * Updates a configuration and waits until its consumer has applied it, as indicated by the given signal.
+     * Fails if the configuration is not applied before the timeout. If timeout is set to 0, it sets the timeout
+     * to 10s.
+     *
+     * @param configuration the configuration
+     * @param properties    the new properties
+     * @param signal        the signal indicating that the configuration is applied
+     * @param timeout       the timeout in milliseconds
+     * @return the time elapsed until the configuration is applied, in milliseconds
+     */
+    public long updateAndWait(Configuration configuration, Dictionary properties, AppliedSignal signal,
+            long timeout) {
+        return updateAndWait(configuration, properties, new AppliedWaiter(configuration, signal, null),
+                timeout);
+    }
+
+    /**
+     * Updates a configuration and waits until the given condition is satisfied. The condition is checked after
+     * the update, and then each time a service or configuration event is received.
+     * Fails if the condition is not satisfied before the timeout. If timeout is set to 0, it sets the timeout
+     * to 10s.
+     *
+     * @param configuration the configuration
+     * @param properties    the new properties
+     * @param condition     the condition
+     * @param timeout       the timeout in milliseconds
+     * @return the time elapsed until the condition is satisfied, in milliseconds
+     */
+    public long updateAndWait(Configuration configuration, Dictionary properties, AppliedCondition condition,
+            long timeout) {
+        return updateAndWait(configuration, properties, new AppliedWaiter(configuration, null, condition),
+                timeout);
+    }
+
+    private long updateAndWait(Configuration configuration, Dictionary properties, AppliedWaiter waiter,
+            long timeout) {
+        long duration = TimeUtils.timeout(timeout);
+        // The listeners are registered before the update, so no event can be missed.
+        waiter.register();
+        try {
+            long begin = System.currentTimeMillis();
+            try {
+                configuration.update(properties);
+            } catch (IOException e) {
+                fail("Cannot update the configuration " + formatConfiguration(configuration) + " : "
+                        + e.getMessage());
+            }
+            if (!waiter.await(duration)) {
+                fail("Timeout ... configuration " + formatConfiguration(configuration) + " not applied after "
+                        + duration + " ms");
+            }
+            return System.currentTimeMillis() - begin;
+        } finally {
+            waiter.unregister();
         }
     }
 
@@ -71,8 +458,354 @@ public class ConfigAdminHelper {
         }
     }
 
+    /**
+     * Gets the Configuration Admin service. The service object is kept until the service is unregistered or the
+     * helper is disposed.
+     *
+     * @return the Configuration Admin service, {@literal null} if not available
+     */
     public ConfigurationAdmin getConfigurationAdmin() {
-        return osgi.getServiceObject(ConfigurationAdmin.class);
+        return m_tracker.get();
+    }
+
+    /**
+     * The configurations captured by {@link #snapshot()}.
+     */
+    public static class ConfigurationSnapshot {
+
+        private final Map<String, Entry> m_configurations = new LinkedHashMap<String, Entry>();
+
+        /**
+         * @return the PIDs of the captured configurations
+         */
+        public Set<String> getPids() {
+            return Collections.unmodifiableSet(m_configurations.keySet());
+        }
+
+        private static class Entry {
+            private final String m_factoryPid;
+            private final Map<String, Object> m_properties;
+
+            private Entry(String factoryPid, Map<String, Object> properties) {
+                m_factoryPid = factoryPid;
+                m_properties = properties;
+            }
+        }
+    }
+
+    /**
+     * An array property value, compared by content. The array is copied so later changes do not alter the
+     * snapshot.
+     */
+    private static class ArrayValue {
+        private final Object m_array;
+
+        private ArrayValue(Object array) {
+            m_array = copyArray(array);
+        }
+
+        private Object copy() {
+            return copyArray(m_array);
+        }
+
+        private static Object copyArray(Object array) {
+            int length = Array.getLength(array);
+            Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+
+        private Object[] toObjects() {
+            Object[] objects = new Object[Array.getLength(m_array)];
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = Array.get(m_array, i);
+            }
+            return objects;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ArrayValue
+                    && m_array.getClass().equals(((ArrayValue) other).m_array.getClass())
+                    && Arrays.equals(toObjects(), ((ArrayValue) other).toObjects());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(toObjects());
+        }
+    }
+
+    /**
+     * Generates the properties of configurations created in bulk.
+     */
+    public static interface PropertiesGenerator {
+
+        /**
+         * Generates the properties of a configuration.
+         *
+         * @param index the index of the configuration, starting at 0
+         * @return the properties
+         */
+        Dictionary generate(int index);
+    }
+
+    /**
+     * The timings of a bulk creation.
+     */
+    public static class BulkCreationReport {
+
+        private final List<Configuration> m_configurations;
+        private final LatencyDistribution m_latencies;
+        private final long m_submission;
+        private final long m_total;
+
+        private BulkCreationReport(List<Configuration> configurations, LatencyDistribution latencies,
+                long submission, long total) {
+            m_configurations = configurations;
+            m_latencies = latencies;
+            m_submission = submission;
+            m_total = total;
+        }
+
+        /**
+         * @return the created configurations
+         */
+        public List<Configuration> getConfigurations() {
+            return m_configurations;
+        }
+
+        /**
+         * @return the distribution of the latencies between the update of each configuration and the registration
+         * of the corresponding service
+         */
+        public LatencyDistribution getLatencies() {
+            return m_latencies;
+        }
+
+        /**
+         * @return the time spent submitting the configurations, in nanoseconds
+         */
+        public long getSubmissionDuration() {
+            return m_submission;
+        }
+
+        /**
+         * @return the time elapsed until all the configurations were applied, in nanoseconds
+         */
+        public long getTotalDuration() {
+            return m_total;
+        }
+
+        /**
+         * @return the number of configurations applied per second
+         */
+        public double getThroughput() {
+            return m_total == 0 ? 0 : m_latencies.getCount() * 1000000000.0 / m_total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%d factory configurations applied in %.3f ms (submitted in %.3f ms), %.1f configurations/s, "
+                            + "update to registration: %s",
+                    m_latencies.getCount(), m_total / 1000000.0, m_submission / 1000000.0, getThroughput(),
+                    m_latencies);
+        }
+    }
+
+    /**
+     * Records the registration of the services of configurations created in bulk.
+     */
+    private class BulkCreationWaiter extends EventWaiter implements ServiceListener {
+
+        private final List<Configuration> m_configurations;
+        private final Map<String, Long> m_pending = new HashMap<String, Long>();
+        private final LatencyDistribution m_latencies = new LatencyDistribution();
+        private boolean m_registered;
+
+        private BulkCreationWaiter(int count) {
+            m_configurations = new ArrayList<Configuration>(count);
+        }
+
+        private void submitted(Configuration configuration) {
+            synchronized (m_pending) {
+                m_configurations.add(configuration);
+                m_pending.put(configuration.getPid(), System.nanoTime());
+            }
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() != ServiceEvent.REGISTERED && event.getType() != ServiceEvent.MODIFIED) {
+                return;
+            }
+            long now = System.nanoTime();
+            Long updated = null;
+            synchronized (m_pending) {
+                Object pid = event.getServiceReference().getProperty(Constants.SERVICE_PID);
+                if (pid instanceof String) {
+                    updated = m_pending.remove(pid);
+                }
+                pid = event.getServiceReference().getProperty("instance.name");
+                if (updated == null && pid instanceof String) {
+                    updated = m_pending.remove(pid);
+                }
+            }
+            if (updated != null) {
+                m_latencies.record(now - updated);
+                signal();
+            }
+        }
+
+        private List<String> getPendingPids() {
+            synchronized (m_pending) {
+                return new ArrayList<String>(m_pending.keySet());
+            }
+        }
+
+        @Override
+        protected synchronized void register() {
+            if (!m_registered) {
+                context.addServiceListener(this);
+                m_registered = true;
+            }
+        }
+
+        @Override
+        protected synchronized void unregister() {
+            if (m_registered) {
+                context.removeServiceListener(this);
+                m_registered = false;
+            }
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            synchronized (m_pending) {
+                return m_pending.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * The signals indicating that a configuration has been applied by its consumer.
+     */
+    public static enum AppliedSignal {
+        /**
+         * A service carrying the PID of the configuration (as {@literal service.pid} or {@literal instance.name})
+         * is registered or modified.
+         */
+        SERVICE_PROPERTIES,
+
+        /**
+         * The update is dispatched (CM_UPDATED), and then a service carrying the PID of the configuration (as
+         * {@literal service.pid} or {@literal instance.name}) is modified.
+         */
+        UPDATED_THEN_MODIFIED
+    }
+
+    /**
+     * A user-supplied condition indicating that a configuration has been applied.
+     */
+    public static interface AppliedCondition {
+
+        /**
+         * Checks whether the configuration has been applied. Called after the update, and then each time a
+         * service or configuration event is received.
+         *
+         * @param configuration the updated configuration
+         * @return {@literal true} if the configuration has been applied
+         */
+        boolean isApplied(Configuration configuration);
+    }
+
+    /**
+     * Waits until a configuration is applied. The events are queued by the listeners and processed in order by the
+     * waiting thread.
+     */
+    private class AppliedWaiter extends EventWaiter implements ServiceListener, ConfigurationListener {
+
+        private final String m_pid;
+        private final AppliedSignal m_signal;
+        private final AppliedCondition m_condition;
+        private final Configuration m_configuration;
+        private final List<Object> m_events = new ArrayList<Object>();
+        private ServiceRegistration m_registration;
+        private boolean m_updated;
+        private boolean m_applied;
+
+        private AppliedWaiter(Configuration configuration, AppliedSignal signal, AppliedCondition condition) {
+            m_configuration = configuration;
+            m_pid = configuration.getPid();
+            m_signal = signal;
+            m_condition = condition;
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            synchronized (m_events) {
+                m_events.add(event);
+            }
+            signal();
+        }
+
+        public void configurationEvent(ConfigurationEvent event) {
+            if (m_pid.equals(event.getPid())) {
+                synchronized (m_events) {
+                    m_events.add(event);
+                }
+                signal();
+            }
+        }
+
+        @Override
+        protected synchronized void register() {
+            if (m_registration == null) {
+                context.addServiceListener(this);
+                m_registration = context.registerService(ConfigurationListener.class.getName(), this, null);
+            }
+        }
+
+        @Override
+        protected synchronized void unregister() {
+            if (m_registration != null) {
+                context.removeServiceListener(this);
+                m_registration.unregister();
+                m_registration = null;
+            }
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            List<Object> events;
+            synchronized (m_events) {
+                events = new ArrayList<Object>(m_events);
+                m_events.clear();
+            }
+            if (m_condition != null) {
+                return m_condition.isApplied(m_configuration);
+            }
+            for (Object event : events) {
+                if (event instanceof ConfigurationEvent) {
+                    m_updated = m_updated || ((ConfigurationEvent) event).getType() == ConfigurationEvent.CM_UPDATED;
+                } else {
+                    ServiceEvent serviceEvent = (ServiceEvent) event;
+                    if (m_signal == AppliedSignal.SERVICE_PROPERTIES) {
+                        m_applied = m_applied || (serviceEvent.getType() == ServiceEvent.REGISTERED
+                                || serviceEvent.getType() == ServiceEvent.MODIFIED)
+                                && carriesPid(serviceEvent.getServiceReference());
+                    } else {
+                        m_applied = m_applied || m_updated && serviceEvent.getType() == ServiceEvent.MODIFIED
+                                && carriesPid(serviceEvent.getServiceReference());
+                    }
+                }
+            }
+            return m_applied;
+        }
+
+        private boolean carriesPid(ServiceReference reference) {
+            return m_pid.equals(reference.getProperty(Constants.SERVICE_PID))
+                    || m_pid.equals(reference.getProperty("instance.name"));
+        }
     }
 
 }
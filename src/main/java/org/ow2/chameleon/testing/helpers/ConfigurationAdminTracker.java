@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * Tracks the Configuration Admin service for the configuration helpers. The service object is acquired once and
+ * kept until the service is unregistered or the tracker is closed, so it is always released. The best service (by
+ * ranking) is selected when several Configuration Admin services are registered.
+ */
+class ConfigurationAdminTracker implements ServiceListener {
+
+    private static final String FILTER = "(" + Constants.OBJECTCLASS + "=" + ConfigurationAdmin.class.getName() + ")";
+
+    private final BundleContext m_context;
+    private ServiceReference m_reference;
+    private ConfigurationAdmin m_admin;
+    private boolean m_open;
+
+    ConfigurationAdminTracker(BundleContext context) {
+        m_context = context;
+    }
+
+    /**
+     * Gets the Configuration Admin service.
+     *
+     * @return the service object, {@literal null} if not available
+     */
+    synchronized ConfigurationAdmin get() {
+        open();
+        if (m_admin == null) {
+            ServiceReference best = null;
+            try {
+                ServiceReference[] references = m_context.getServiceReferences(ConfigurationAdmin.class.getName(),
+                        null);
+                if (references != null) {
+                    for (ServiceReference reference : references) {
+                        if (reference.getBundle() != null && (best == null || reference.compareTo(best) > 0)) {
+                            best = reference;
+                        }
+                    }
+                }
+            } catch (InvalidSyntaxException e) {
+                // Cannot happen, no filter.
+            }
+            if (best != null) {
+                m_admin = (ConfigurationAdmin) m_context.getService(best);
+                m_reference = m_admin == null ? null : best;
+            }
+        }
+        return m_admin;
+    }
+
+    /**
+     * Waits until the Configuration Admin service is available.
+     *
+     * @param timeout the timeout in milliseconds, the time factor is not applied
+     * @return the service object, {@literal null} if not available after the timeout
+     */
+    ConfigurationAdmin waitFor(long timeout) {
+        ConfigurationAdmin admin = get();
+        if (admin != null) {
+            return admin;
+        }
+        EventWaiter waiter = new EventWaiter() {
+            private final ServiceListener m_listener = new ServiceListener() {
+                public void serviceChanged(ServiceEvent event) {
+                    signal();
+                }
+            };
+
+            @Override
+            protected void register() {
+                try {
+                    m_context.addServiceListener(m_listener, FILTER);
+                } catch (InvalidSyntaxException e) {
+                    throw new IllegalStateException("Invalid filter " + FILTER, e);
+                }
+            }
+
+            @Override
+            protected void unregister() {
+                m_context.removeServiceListener(m_listener);
+            }
+
+            @Override
+            protected boolean isSatisfied() {
+                return get() != null;
+            }
+        };
+        waiter.await(timeout);
+        return get();
+    }
+
+    private void open() {
+        if (!m_open) {
+            try {
+                m_context.addServiceListener(this, FILTER);
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalStateException("Invalid filter " + FILTER, e);
+            }
+            m_open = true;
+        }
+    }
+
+    /**
+     * Invalidates the service object when the service is unregistered.
+     */
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.UNREGISTERING) {
+            synchronized (this) {
+                if (event.getServiceReference().equals(m_reference)) {
+                    release();
+                }
+            }
+        }
+    }
+
+    private void release() {
+        if (m_reference != null) {
+            try {
+                m_context.ungetService(m_reference);
+            } catch (IllegalStateException e) {
+                // The context is no longer valid.
+            }
+        }
+        m_reference = null;
+        m_admin = null;
+    }
+
+    /**
+     * Releases the service object and stops tracking.
+     */
+    synchronized void close() {
+        if (m_open) {
+            try {
+                m_context.removeServiceListener(this);
+            } catch (IllegalStateException e) {
+                // The context is no longer valid.
+            }
+            m_open = false;
+        }
+        release();
+    }
+}
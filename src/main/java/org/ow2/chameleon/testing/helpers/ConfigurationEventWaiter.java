@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Waits until the Configuration Admin has dispatched an event of the given type (CM_UPDATED or CM_DELETED) for
+ * each expected PID. The listener must be registered with {@link #register()} before the configurations are
+ * updated or deleted, and the PIDs must be expected before the operation, so no event can be missed.
+ */
+class ConfigurationEventWaiter extends EventWaiter implements ConfigurationListener {
+
+    private final BundleContext m_context;
+    private final int m_type;
+    private final Set<String> m_pending = new LinkedHashSet<String>();
+    private ServiceRegistration m_registration;
+
+    /**
+     * Creates the waiter.
+     *
+     * @param context the bundle context
+     * @param type    the event type, {@link ConfigurationEvent#CM_UPDATED} or {@link ConfigurationEvent#CM_DELETED}
+     */
+    ConfigurationEventWaiter(BundleContext context, int type) {
+        m_context = context;
+        m_type = type;
+    }
+
+    /**
+     * Expects an event for the given PID.
+     *
+     * @param pid the PID
+     */
+    void expect(String pid) {
+        synchronized (m_pending) {
+            m_pending.add(pid);
+        }
+    }
+
+    /**
+     * Gives up on the event of the given PID, when the operation has failed.
+     *
+     * @param pid the PID
+     */
+    void cancel(String pid) {
+        synchronized (m_pending) {
+            m_pending.remove(pid);
+        }
+    }
+
+    /**
+     * @return the PIDs for which no event has been received yet
+     */
+    List<String> getPendingPids() {
+        synchronized (m_pending) {
+            return new ArrayList<String>(m_pending);
+        }
+    }
+
+    public void configurationEvent(ConfigurationEvent event) {
+        if (event.getType() == m_type) {
+            synchronized (m_pending) {
+                m_pending.remove(event.getPid());
+            }
+            signal();
+        }
+    }
+
+    /**
+     * Registers the listener. It can be called before {@link #await(long)}, which does not register it twice.
+     */
+    @Override
+    protected synchronized void register() {
+        if (m_registration == null) {
+            m_registration = m_context.registerService(ConfigurationListener.class.getName(), this, null);
+        }
+    }
+
+    @Override
+    protected synchronized void unregister() {
+        if (m_registration != null) {
+            m_registration.unregister();
+            m_registration = null;
+        }
+    }
+
+    @Override
+    protected boolean isSatisfied() {
+        synchronized (m_pending) {
+            return m_pending.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Hot-deploys artifacts in the deploy directory of a chameleon (watched by fileinstall) and waits until they are
+ * deployed. Bundles must be installed or updated and then started (or resolved for fragments), configurations
+ * (.cfg files) must be updated, and the expected services must be registered or modified. Only the events received
+ * once the deployment has begun are considered, so redeploying an artifact waits for its new version. The wait is
+ * driven by these events, so it returns as soon as everything is up.
+ * <code>
+ *     DeployHelper deployer = new DeployHelper(context);
+ *     DeployHelper.DeploymentReport report = deployer.prepare(bundle, configuration)
+ *         .expectService(Hello.class.getName())
+ *         .deploy(10000);
+ *     System.out.println(report);
+ *     deployer.dispose(); // Removes the deployed files
+ * </code>
+ */
+public class DeployHelper extends AbstractHelper {
+
+    /**
+     * The system property giving the directory watched by fileinstall, set by {@link ChameleonOption}.
+     */
+    public static final String FILEINSTALL_DIR_PROPERTY = "felix.fileinstall.dir";
+
+    private final File m_directory;
+    private final List<File> m_deployed = new ArrayList<File>();
+
+    /**
+     * Creates the helper, using the directory given by the {@literal felix.fileinstall.dir} property.
+     *
+     * @param context the bundle context
+     */
+    public DeployHelper(BundleContext context) {
+        this(context, getDeployDirectory(context));
+    }
+
+    /**
+     * Creates the helper.
+     *
+     * @param context   the bundle context
+     * @param directory the deploy directory
+     */
+    public DeployHelper(BundleContext context, File directory) {
+        super(context);
+        m_directory = directory;
+    }
+
+    private static File getDeployDirectory(BundleContext context) {
+        String directory = context.getProperty(FILEINSTALL_DIR_PROPERTY);
+        if (directory == null) {
+            throw new IllegalStateException("The deploy directory is not set (" + FILEINSTALL_DIR_PROPERTY + ")");
+        }
+        return new File(directory);
+    }
+
+    /**
+     * @return the deploy directory
+     */
+    public File getDeployDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * Prepares the deployment of the given artifacts: bundles (.jar) and configurations (.cfg). Other files are
+     * copied, but not waited for.
+     *
+     * @param artifacts the artifacts
+     * @return the deployment, to complete with the expected services
+     */
+    public Deployment prepare(File... artifacts) {
+        return new Deployment(artifacts);
+    }
+
+    /**
+     * Deploys the given artifacts and waits until they are deployed. Fails on timeout.
+     * If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param timeout   the timeout in milliseconds
+     * @param artifacts the artifacts
+     * @return the deployment report
+     */
+    public DeploymentReport deploy(long timeout, File... artifacts) {
+        return prepare(artifacts).deploy(timeout);
+    }
+
+    /**
+     * Removes the deployed files from the deploy directory. fileinstall uninstalls the bundles and deletes the
+     * configurations.
+     */
+    @Override
+    public void dispose() {
+        synchronized (m_deployed) {
+            for (File file : m_deployed) {
+                if (file.exists() && !file.delete()) {
+                    System.err.println("Cannot delete " + file.getAbsolutePath());
+                }
+            }
+            m_deployed.clear();
+        }
+    }
+
+    /**
+     * Copies the file in the deploy directory. The file is written next to the deploy directory and then moved, so
+     * fileinstall never sees a partial file.
+     */
+    private File copy(File artifact) {
+        File target = new File(m_directory, artifact.getName());
+        try {
+            File parent = m_directory.getAbsoluteFile().getParentFile();
+            File temporary = File.createTempFile(".deploy", ".tmp", parent);
+            InputStream in = new FileInputStream(artifact);
+            try {
+                OutputStream out = new FileOutputStream(temporary);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (target.exists()) {
+                target.delete();
+            }
+            if (!temporary.renameTo(target)) {
+                temporary.delete();
+                fail("Cannot move " + artifact.getName() + " to " + m_directory.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            fail("Cannot deploy " + artifact.getAbsolutePath() + " : " + e.getMessage());
+        }
+        synchronized (m_deployed) {
+            m_deployed.add(target);
+        }
+        return target;
+    }
+
+    private static String getSymbolicName(File jar) {
+        try {
+            JarFile file = new JarFile(jar);
+            try {
+                Manifest manifest = file.getManifest();
+                if (manifest == null) {
+                    return null;
+                }
+                String name = manifest.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+                if (name != null && name.indexOf(';') != -1) {
+                    name = name.substring(0, name.indexOf(';'));
+                }
+                return name == null ? null : name.trim();
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            fail("Cannot read the manifest of " + jar.getAbsolutePath() + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isFragment(File jar) {
+        try {
+            JarFile file = new JarFile(jar);
+            try {
+                Manifest manifest = file.getManifest();
+                return manifest != null && manifest.getMainAttributes().getValue(Constants.FRAGMENT_HOST) != null;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A deployment in preparation.
+     */
+    public class Deployment {
+
+        private final List<Expectation> m_expectations = new ArrayList<Expectation>();
+        private final File[] m_artifacts;
+
+        private Deployment(File[] artifacts) {
+            m_artifacts = artifacts;
+            for (File artifact : artifacts) {
+                if (artifact.getName().endsWith(".jar")) {
+                    String name = getSymbolicName(artifact);
+                    if (name != null) {
+                        m_expectations.add(new BundleExpectation(artifact.getName(), name, isFragment(artifact)));
+                    }
+                } else if (artifact.getName().endsWith(".cfg")) {
+                    String[] pid = ChameleonHelper.parsePid(artifact.getName());
+                    m_expectations.add(new ConfigurationExpectation(artifact.getName(), pid[0], pid[1] != null));
+                }
+            }
+        }
+
+        /**
+         * Also waits for a service.
+         *
+         * @param clazz the service interface
+         * @return the current deployment
+         */
+        public Deployment expectService(String clazz) {
+            return expectService(clazz, null);
+        }
+
+        /**
+         * Also waits for a service.
+         *
+         * @param clazz  the service interface
+         * @param filter the filter, {@literal null} to match any provider
+         * @return the current deployment
+         */
+        public Deployment expectService(String clazz, String filter) {
+            m_expectations.add(new ServiceExpectation(clazz, filter));
+            return this;
+        }
+
+        /**
+         * Copies the artifacts in the deploy directory and waits until they are deployed. Fails on timeout.
+         * If timeout is set to 0, it sets the timeout to 10s.
+         *
+         * @param timeout the timeout in milliseconds
+         * @return the deployment report
+         */
+        public DeploymentReport deploy(long timeout) {
+            DeploymentWaiter waiter = new DeploymentWaiter(m_expectations);
+            // The listeners are registered before copying the files, so no event can be missed.
+            waiter.register();
+            long begin = System.nanoTime();
+            long copied;
+            boolean deployed;
+            try {
+                for (File artifact : m_artifacts) {
+                    copy(artifact);
+                }
+                copied = System.nanoTime();
+                deployed = waiter.await(TimeUtils.timeout(timeout));
+            } finally {
+                waiter.unregister();
+            }
+
+            DeploymentReport report = new DeploymentReport(m_expectations, begin, copied);
+            if (!deployed) {
+                StringBuilder message = new StringBuilder("Timeout ... artifacts not deployed after ")
+                        .append(TimeUtils.timeout(timeout)).append(" ms :");
+                for (Expectation expectation : m_expectations) {
+                    if (expectation.m_ready == 0) {
+                        message.append(" ").append(expectation);
+                    }
+                }
+                fail(message.toString());
+            }
+            return report;
+        }
+    }
+
+    /**
+     * Something to wait for. {@link #m_ready} is the time at which the expectation has been met, 0 if not yet.
+     */
+    private abstract static class Expectation {
+        protected volatile long m_ready;
+
+        /**
+         * Checks the expectation against the events received since the beginning of the deployment.
+         *
+         * @param events   the bundle, service and configuration events, in reception order
+         * @param usedPids the PIDs of the configurations already attributed to a file
+         * @return {@literal true} if the expectation is met
+         */
+        abstract boolean check(List<Object> events, Set<String> usedPids);
+    }
+
+    private static class BundleExpectation extends Expectation {
+        private final String m_file;
+        private final String m_symbolicName;
+        private final boolean m_fragment;
+
+        private BundleExpectation(String file, String symbolicName, boolean fragment) {
+            m_file = file;
+            m_symbolicName = symbolicName;
+            m_fragment = fragment;
+        }
+
+        @Override
+        boolean check(List<Object> events, Set<String> usedPids) {
+            Set<Long> deployed = new HashSet<Long>();
+            for (Object object : events) {
+                if (!(object instanceof BundleEvent)) {
+                    continue;
+                }
+                BundleEvent event = (BundleEvent) object;
+                Bundle bundle = event.getBundle();
+                if (!m_symbolicName.equals(bundle.getSymbolicName())) {
+                    continue;
+                }
+                if (event.getType() == BundleEvent.INSTALLED || event.getType() == BundleEvent.UPDATED) {
+                    deployed.add(bundle.getBundleId());
+                } else if (deployed.contains(bundle.getBundleId())
+                        && (m_fragment ? event.getType() == BundleEvent.RESOLVED
+                                : event.getType() == BundleEvent.STARTED)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return m_file + " (bundle " + m_symbolicName + ")";
+        }
+    }
+
+    private static class ConfigurationExpectation extends Expectation {
+        private final String m_file;
+        private final String m_pid;
+        private final boolean m_factory;
+
+        private ConfigurationExpectation(String file, String pid, boolean factory) {
+            m_file = file;
+            m_pid = pid;
+            m_factory = factory;
+        }
+
+        @Override
+        boolean check(List<Object> events, Set<String> usedPids) {
+            for (Object object : events) {
+                if (!(object instanceof ConfigurationEvent)) {
+                    continue;
+                }
+                ConfigurationEvent event = (ConfigurationEvent) object;
+                if (event.getType() != ConfigurationEvent.CM_UPDATED || usedPids.contains(event.getPid())) {
+                    continue;
+                }
+                if (m_factory ? m_pid.equals(event.getFactoryPid()) : m_pid.equals(event.getPid())) {
+                    // Each factory configuration is attributed to a single file.
+                    usedPids.add(event.getPid());
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return m_file + " (" + (m_factory ? "factory configuration " : "configuration ") + m_pid + ")";
+        }
+    }
+
+    private static class ServiceExpectation extends Expectation {
+        private final String m_clazz;
+        private final String m_filter;
+        private final Filter m_compiled;
+
+        private ServiceExpectation(String clazz, String filter) {
+            m_clazz = clazz;
+            m_filter = filter;
+            String objectClass = "(" + Constants.OBJECTCLASS + "=" + clazz + ")";
+            Filter compiled = null;
+            try {
+                compiled = FrameworkUtil.createFilter(filter == null ? objectClass
+                        : "(&" + objectClass + filter + ")");
+            } catch (InvalidSyntaxException e) {
+                fail("Invalid filter " + filter + " : " + e.getMessage());
+            }
+            m_compiled = compiled;
+        }
+
+        @Override
+        boolean check(List<Object> events, Set<String> usedPids) {
+            for (Object object : events) {
+                if (object instanceof ServiceEvent
+                        && (((ServiceEvent) object).getType() == ServiceEvent.REGISTERED
+                                || ((ServiceEvent) object).getType() == ServiceEvent.MODIFIED)
+                        && m_compiled.match(((ServiceEvent) object).getServiceReference())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "service " + m_clazz + (m_filter == null ? "" : " " + m_filter);
+        }
+    }
+
+    /**
+     * Waits for the expectations, re-evaluated on each bundle, service and configuration event. The events are
+     * recorded from the registration of the listeners, just before the copy. The time at which each expectation is
+     * met is recorded.
+     */
+    private class DeploymentWaiter extends EventWaiter implements SynchronousBundleListener, ServiceListener,
+            ConfigurationListener {
+
+        private final List<Expectation> m_pending;
+        private final List<Object> m_events = Collections.synchronizedList(new ArrayList<Object>());
+        private final Set<String> m_usedPids = new HashSet<String>();
+        private ServiceRegistration m_registration;
+
+        private DeploymentWaiter(List<Expectation> expectations) {
+            m_pending = new ArrayList<Expectation>(expectations);
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            if (event.getType() == BundleEvent.INSTALLED || event.getType() == BundleEvent.UPDATED
+                    || event.getType() == BundleEvent.RESOLVED || event.getType() == BundleEvent.STARTED) {
+                m_events.add(event);
+                signal();
+            }
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() == ServiceEvent.REGISTERED || event.getType() == ServiceEvent.MODIFIED) {
+                m_events.add(event);
+                signal();
+            }
+        }
+
+        public void configurationEvent(ConfigurationEvent event) {
+            m_events.add(event);
+            signal();
+        }
+
+        @Override
+        protected synchronized void register() {
+            if (m_registration != null) {
+                return;
+            }
+            context.addBundleListener(this);
+            context.addServiceListener(this);
+            m_registration = context.registerService(ConfigurationListener.class.getName(), this, null);
+        }
+
+        @Override
+        protected synchronized void unregister() {
+            if (m_registration == null) {
+                return;
+            }
+            context.removeBundleListener(this);
+            context.removeServiceListener(this);
+            m_registration.unregister();
+            m_registration = null;
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            List<Object> events;
+            synchronized (m_events) {
+                events = new ArrayList<Object>(m_events);
+            }
+            long now = System.nanoTime();
+            for (int i = m_pending.size() - 1; i >= 0; i--) {
+                Expectation expectation = m_pending.get(i);
+                if (expectation.check(events, m_usedPids)) {
+                    expectation.m_ready = now;
+                    m_pending.remove(i);
+                }
+            }
+            return m_pending.isEmpty();
+        }
+    }
+
+    /**
+     * The timings of a deployment. Durations are in nanoseconds.
+     */
+    public static class DeploymentReport {
+
+        private final List<Expectation> m_expectations;
+        private final long m_begin;
+        private final long m_copied;
+
+        private DeploymentReport(List<Expectation> expectations, long begin, long copied) {
+            m_expectations = expectations;
+            m_begin = begin;
+            m_copied = copied;
+        }
+
+        /**
+         * @return the time spent copying the artifacts in the deploy directory.
+         */
+        public long getCopyDuration() {
+            return m_copied - m_begin;
+        }
+
+        /**
+         * @return the time elapsed between the end of the copy and the moment everything is deployed (the
+         * hot-deploy latency), -1 if the deployment has not completed.
+         */
+        public long getDeploymentLatency() {
+            long last = m_copied;
+            for (Expectation expectation : m_expectations) {
+                if (expectation.m_ready == 0) {
+                    return -1;
+                }
+                last = Math.max(last, expectation.m_ready);
+            }
+            return last - m_copied;
+        }
+
+        /**
+         * @return the time elapsed between the beginning of the copy and the moment everything is deployed, -1 if
+         * the deployment has not completed.
+         */
+        public long getTotalDuration() {
+            long latency = getDeploymentLatency();
+            return latency < 0 ? -1 : latency + getCopyDuration();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Deployment: copy ").append(format(getCopyDuration()))
+                    .append(" ms, deployed in ").append(format(getDeploymentLatency())).append(" ms");
+            for (Expectation expectation : m_expectations) {
+                builder.append(String.format(Locale.ENGLISH, "%n  %-70s %10s", expectation,
+                        expectation.m_ready == 0 ? "-" : format(expectation.m_ready - m_copied)));
+            }
+            return builder.toString();
+        }
+
+        private static String format(long nanos) {
+            if (nanos < 0) {
+                return "-";
+            }
+            return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000.0);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+/**
+ * Waits for a condition re-evaluated each time an event is signaled.
+ * Implementations register their listeners in {@link #register()}, call {@link #signal()} from the listener
+ * callbacks, and check the condition in {@link #isSatisfied()}. Listeners are registered before the first check, so
+ * no event can be missed. The condition is never evaluated while holding the lock used by {@link #signal()}, so
+ * listeners called synchronously by the framework cannot deadlock with the waiting thread.
+ */
+abstract class EventWaiter {
+
+    private final Object m_lock = new Object();
+    private long m_events;
+
+    /**
+     * Registers the listeners. Called before the first evaluation of the condition.
+     */
+    protected void register() {
+        // Nothing by default.
+    }
+
+    /**
+     * Unregisters the listeners. Called once the wait is completed, even on timeout.
+     */
+    protected void unregister() {
+        // Nothing by default.
+    }
+
+    /**
+     * Checks whether the condition is satisfied. Only called from the waiting thread.
+     *
+     * @return {@literal true} if the condition is satisfied
+     */
+    protected abstract boolean isSatisfied();
+
+    /**
+     * Notifies the waiting thread that the condition must be re-evaluated.
+     */
+    protected void signal() {
+        synchronized (m_lock) {
+            m_events++;
+            m_lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the condition is satisfied.
+     *
+     * @param timeout the timeout in milliseconds, the time factor is not applied
+     * @return {@literal true} if the condition is satisfied, {@literal false} if the timeout is reached
+     */
+    boolean await(long timeout) {
+        register();
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                long seen;
+                synchronized (m_lock) {
+                    seen = m_events;
+                }
+                if (isSatisfied()) {
+                    return true;
+                }
+                synchronized (m_lock) {
+                    while (m_events == seen) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        m_lock.wait(remaining);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            unregister();
+        }
+    }
+}
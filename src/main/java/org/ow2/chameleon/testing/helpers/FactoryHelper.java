@@ -15,17 +15,42 @@
 package org.ow2.chameleon.testing.helpers;
 
 import org.apache.felix.ipojo.Factory;
+import org.apache.felix.ipojo.FactoryStateListener;
 import org.apache.felix.ipojo.Handler;
 import org.apache.felix.ipojo.HandlerFactory;
 import org.apache.felix.ipojo.ServiceContext;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.fail;
 
 /**
  * Retrieves factories.
+ * Component factories are cached by name once retrieved. A cached factory is evicted, and its service released,
+ * when it is unregistered.
  */
 public class FactoryHelper extends AbstractHelper {
+
+    private static final String FACTORY_FILTER = "(" + Constants.OBJECTCLASS + "=" + Factory.class.getName() + ")";
+
     private final OSGiHelper osgiHelper;
     private final IPOJOServiceHelper serviceHelper;
+    private final ConcurrentMap<String, TrackedFactory> m_factories = new ConcurrentHashMap<String, TrackedFactory>();
+    private final ServiceListener m_listener = new ServiceListener() {
+        public void serviceChanged(ServiceEvent event) {
+            if (event.getType() == ServiceEvent.UNREGISTERING || event.getType() == ServiceEvent.MODIFIED) {
+                evict(event.getServiceReference(), event.getType() == ServiceEvent.MODIFIED);
+            }
+        }
+    };
+    private boolean m_listening;
 
     public FactoryHelper(BundleContext context, OSGiHelper osgi, IPOJOServiceHelper service) {
         super(context);
@@ -35,6 +60,17 @@ public class FactoryHelper extends AbstractHelper {
 
     @Override
     public void dispose() {
+        synchronized (this) {
+            if (m_listening) {
+                context.removeServiceListener(m_listener);
+                m_listening = false;
+            }
+        }
+        for (TrackedFactory tracked : m_factories.values()) {
+            if (m_factories.remove(tracked.m_name, tracked)) {
+                ungetService(tracked.m_reference);
+            }
+        }
         osgiHelper.dispose();
     }
 
@@ -77,9 +113,139 @@ public class FactoryHelper extends AbstractHelper {
      *         {@code null} if not found.
      */
     public Factory getFactory(String factoryName, long timeout, boolean fail) {
+        TrackedFactory tracked = m_factories.get(factoryName);
+        if (tracked != null) {
+            return tracked.m_factory;
+        }
+
+        // The listener is registered before the lookup, so no unregistration can be missed.
+        listen();
         // Waits for the factory.
-        return osgiHelper.waitForService(Factory.class,
+        ServiceReference reference = osgiHelper.waitForService(Factory.class.getName(),
                 "(factory.name=" + factoryName + ")", timeout, fail);
+        if (reference == null) {
+            return null;
+        }
+        Factory factory = (Factory) context.getService(reference);
+        if (factory == null) {
+            // Unregistered in the meantime.
+            return null;
+        }
+        TrackedFactory created = new TrackedFactory(factoryName, reference, factory);
+        tracked = m_factories.putIfAbsent(factoryName, created);
+        if (tracked != null) {
+            ungetService(reference);
+            return tracked.m_factory;
+        }
+        if (reference.getBundle() == null) {
+            // Unregistered before being cached.
+            evict(reference, false);
+        }
+        return factory;
+    }
+
+    /**
+     * Returns the component factory with the given name, once it is valid (all its handlers are available).
+     * If the factory is not available or not valid, it adopts the timeout value given as parameter (in
+     * milliseconds). If timeout is set to 0, it sets the timeout to 10s. Fails on timeout, reporting the missing
+     * handlers.
+     *
+     * @param factoryName the name of the factory to retrieve.
+     * @param timeout     the timeout
+     * @return the valid component factory with the given name.
+     */
+    public Factory waitForValidFactory(String factoryName, long timeout) {
+        return waitForValidFactory(factoryName, timeout, true);
+    }
+
+    /**
+     * Returns the component factory with the given name, once it is valid (all its handlers are available).
+     * The wait is driven by the state notifications of the factory.
+     * If the factory is not available or not valid, it adopts the timeout value given as parameter (in
+     * milliseconds). If timeout is set to 0, it sets the timeout to 10s.
+     *
+     * @param factoryName the name of the factory to retrieve.
+     * @param timeout     the timeout
+     * @param fail        fail the test if the factory is not valid when the timeout is reached
+     * @return the valid component factory with the given name, or {@code null} if not found or not valid.
+     */
+    public Factory waitForValidFactory(String factoryName, long timeout, boolean fail) {
+        long begin = System.currentTimeMillis();
+        final Factory factory = getFactory(factoryName, timeout, fail);
+        if (factory == null || factory.getState() == Factory.VALID) {
+            return factory;
+        }
+
+        long remaining = TimeUtils.timeout(timeout) - (System.currentTimeMillis() - begin);
+        EventWaiter waiter = new EventWaiter() {
+            private final FactoryStateListener m_listener = new FactoryStateListener() {
+                public void stateChanged(Factory factory, int state) {
+                    signal();
+                }
+            };
+
+            @Override
+            protected void register() {
+                factory.addFactoryStateListener(m_listener);
+            }
+
+            @Override
+            protected void unregister() {
+                factory.removeFactoryStateListener(m_listener);
+            }
+
+            @Override
+            protected boolean isSatisfied() {
+                return factory.getState() == Factory.VALID;
+            }
+        };
+        if (waiter.await(Math.max(0, remaining))) {
+            return factory;
+        }
+
+        String message = "Timeout ... factory " + factoryName + " not valid after " + TimeUtils.timeout(timeout)
+                + " ms, missing handlers : " + factory.getMissingHandlers();
+        if (fail) {
+            fail(message);
+        } else {
+            System.err.println(message);
+        }
+        return null;
+    }
+
+    private synchronized void listen() {
+        if (!m_listening) {
+            try {
+                context.addServiceListener(m_listener, FACTORY_FILTER);
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalStateException("Invalid filter " + FACTORY_FILTER, e);
+            }
+            m_listening = true;
+        }
+    }
+
+    /**
+     * Evicts the factory published by the given reference.
+     *
+     * @param reference the reference
+     * @param renamed   only evict the factory if its name has changed
+     */
+    private void evict(ServiceReference reference, boolean renamed) {
+        for (TrackedFactory tracked : m_factories.values()) {
+            if (tracked.m_reference.equals(reference)
+                    && (!renamed || !tracked.m_name.equals(reference.getProperty("factory.name")))
+                    && m_factories.remove(tracked.m_name, tracked)) {
+                ungetService(reference);
+            }
+        }
+    }
+
+    private void ungetService(ServiceReference reference) {
+        try {
+            context.ungetService(reference);
+        } catch (IllegalStateException e) {
+            // The context is no longer valid.
+        }
     }
 
     /**
@@ -136,4 +302,19 @@ public class FactoryHelper extends AbstractHelper {
                 "(" + Handler.HANDLER_NAME_PROPERTY + "=" + factoryName + ")", timeout, fail);
     }
 
+    /**
+     * A cached factory.
+     */
+    private static class TrackedFactory {
+        private final String m_name;
+        private final ServiceReference m_reference;
+        private final Factory m_factory;
+
+        private TrackedFactory(String name, ServiceReference reference, Factory factory) {
+            m_name = name;
+            m_reference = reference;
+            m_factory = factory;
+        }
+    }
+
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content hashes.
+ */
+public class HashUtils {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Creates a new SHA-1 digest.
+     *
+     * @return the digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is supported by every JVM.
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+    }
+
+    /**
+     * Computes the SHA-1 hash of the given content.
+     *
+     * @param content the content
+     * @return the hash as an hexadecimal string
+     */
+    public static String sha1(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    /**
+     * Computes the SHA-1 hash of the given content, from the position to the limit of the buffer.
+     * The position of the given buffer is not modified.
+     *
+     * @param content the content
+     * @return the hash as an hexadecimal string
+     */
+    public static String sha1(ByteBuffer content) {
+        MessageDigest digest = newDigest();
+        digest.update(content.duplicate());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-1 hash of the content of the given stream. The stream is closed.
+     *
+     * @param stream the stream
+     * @return the hash as an hexadecimal string
+     * @throws IOException if the stream cannot be read
+     */
+    public static String sha1(InputStream stream) throws IOException {
+        MessageDigest digest = newDigest();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts bytes to an hexadecimal string.
+     *
+     * @param bytes the bytes
+     * @return the hexadecimal representation
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+}
@@ -125,6 +125,20 @@ public class IPOJOHelper extends AbstractHelper {
         return m_factoryHelper.getFactory(factoryName, timeout);
     }
 
+    /**
+     * Returns the component factory with the given name in the local bundle, once it is valid.
+     * If the factory is not available or not valid, it adopts the timeout value given as parameter (in
+     * milliseconds). If timeout is set to 0, it sets the timeout to 10s. Fails on timeout, reporting the missing
+     * handlers.
+     *
+     * @param factoryName the name of the factory to retrieve.
+     * @param timeout     the timeout
+     * @return the valid component factory with the given name in the local bundle.
+     */
+    public Factory waitForValidFactory(String factoryName, long timeout) {
+        return m_factoryHelper.waitForValidFactory(factoryName, timeout);
+    }
+
     /**
      * Returns the component factory with the given name in the given service context.
      *
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+
+/**
+ * Builds bundles in memory, without writing anything on disk.
+ * The builder is not consumed by {@link #build()}, so it can be used as a template to generate several variants:
+ * <code>
+ *     InMemoryBundle template = InMemoryBundle.bundle("synthetic").add(MyActivator.class);
+ *     for (int i = 0; i &lt; 1000; i++) {
+ *         bundleHelper.install(template.set(Constants.BUNDLE_SYMBOLICNAME, "synthetic-" + i));
+ *     }
+ * </code>
+ */
+public class InMemoryBundle {
+
+    /**
+     * The location prefix of the bundles installed from memory.
+     */
+    public static final String LOCATION_PREFIX = "memory:";
+
+    private final Map<String, String> m_headers = new LinkedHashMap<String, String>();
+    private final Map<String, byte[]> m_resources = new LinkedHashMap<String, byte[]>();
+
+    private InMemoryBundle() {
+        m_headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+    }
+
+    /**
+     * Creates a new bundle builder.
+     *
+     * @param symbolicName the bundle symbolic name
+     * @return the builder
+     */
+    public static InMemoryBundle bundle(String symbolicName) {
+        return new InMemoryBundle().set(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+    }
+
+    /**
+     * Sets a manifest header. Setting a {@literal null} value removes the header.
+     *
+     * @param header the header name
+     * @param value  the value
+     * @return the current builder
+     */
+    public InMemoryBundle set(String header, String value) {
+        if (value == null) {
+            m_headers.remove(header);
+        } else {
+            m_headers.put(header, value);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a resource to the bundle.
+     *
+     * @param path    the path of the resource in the bundle
+     * @param content the content
+     * @return the current builder
+     */
+    public InMemoryBundle add(String path, byte[] content) {
+        m_resources.put(path, content);
+        return this;
+    }
+
+    /**
+     * Adds a class to the bundle. The class file is read from the class loader of the class.
+     *
+     * @param clazz the class
+     * @return the current builder
+     */
+    public InMemoryBundle add(Class<?> clazz) {
+        String path = clazz.getName().replace('.', '/') + ".class";
+        ClassLoader loader = clazz.getClassLoader();
+        InputStream stream = loader == null ? ClassLoader.getSystemResourceAsStream(path) : loader
+                .getResourceAsStream(path);
+        if (stream == null) {
+            throw new IllegalArgumentException("Cannot find the class file of " + clazz.getName());
+        }
+        try {
+            return add(path, read(stream));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read the class file of " + clazz.getName(), e);
+        }
+    }
+
+    /**
+     * @return the bundle symbolic name.
+     */
+    public String getSymbolicName() {
+        return m_headers.get(Constants.BUNDLE_SYMBOLICNAME);
+    }
+
+    /**
+     * Computes a location for this bundle: {@literal memory:symbolic-name/version}.
+     *
+     * @return the location
+     */
+    public String getLocation() {
+        String version = m_headers.get(Constants.BUNDLE_VERSION);
+        return LOCATION_PREFIX + getSymbolicName() + (version == null ? "" : "/" + version);
+    }
+
+    /**
+     * Builds the bundle.
+     *
+     * @return the jar file content
+     */
+    public byte[] build() {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (Map.Entry<String, String> header : m_headers.entrySet()) {
+            attributes.putValue(header.getKey(), header.getValue());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(estimateSize());
+        try {
+            JarOutputStream jar = new JarOutputStream(out, manifest);
+            jar.setLevel(Deflater.BEST_SPEED);
+            for (Map.Entry<String, byte[]> resource : m_resources.entrySet()) {
+                jar.putNextEntry(new JarEntry(resource.getKey()));
+                jar.write(resource.getValue());
+                jar.closeEntry();
+            }
+            jar.close();
+        } catch (IOException e) {
+            // Cannot happen, we write in memory.
+            throw new IllegalStateException("Cannot build the bundle " + getSymbolicName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds the bundle.
+     *
+     * @return a buffer wrapping the jar file content
+     */
+    public ByteBuffer buildBuffer() {
+        return ByteBuffer.wrap(build());
+    }
+
+    private int estimateSize() {
+        int size = 512;
+        for (byte[] content : m_resources.values()) {
+            size += content.length;
+        }
+        return size;
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
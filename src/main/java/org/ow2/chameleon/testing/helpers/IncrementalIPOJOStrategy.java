@@ -0,0 +1,670 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.felix.ipojo.manipulation.InnerClassManipulator;
+import org.apache.felix.ipojo.manipulation.Manipulator;
+import org.apache.felix.ipojo.manipulator.ManipulationResultVisitor;
+import org.apache.felix.ipojo.manipulator.ManipulationVisitor;
+import org.apache.felix.ipojo.manipulator.Reporter;
+import org.apache.felix.ipojo.manipulator.metadata.AnnotationMetadataProvider;
+import org.apache.felix.ipojo.manipulator.metadata.CompositeMetadataProvider;
+import org.apache.felix.ipojo.manipulator.metadata.FileMetadataProvider;
+import org.apache.felix.ipojo.manipulator.render.MetadataRenderer;
+import org.apache.felix.ipojo.manipulator.store.JarFileResourceStore;
+import org.apache.felix.ipojo.manipulator.store.ManifestBuilder;
+import org.apache.felix.ipojo.manipulator.store.builder.DefaultManifestBuilder;
+import org.apache.felix.ipojo.manipulator.util.Metadatas;
+import org.apache.felix.ipojo.manipulator.util.Strings;
+import org.apache.felix.ipojo.manipulator.visitor.check.CheckFieldConsistencyVisitor;
+import org.apache.felix.ipojo.manipulator.visitor.writer.ManipulatedResourcesWriter;
+import org.apache.felix.ipojo.metadata.Attribute;
+import org.apache.felix.ipojo.metadata.Element;
+import org.ops4j.pax.tinybundles.core.BuildStrategy;
+import org.ops4j.pax.tinybundles.core.intern.BndBuilder;
+import org.ow2.chameleon.testing.tinybundles.ipojo.ConsoleReporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * A TinyBundles build strategy applying the iPOJO manipulation incrementally.
+ * It produces the same bundle as the tinybundles-ipojo strategy, but the manipulation result of each component class
+ * is kept in a cache directory, keyed by the hash of its class file. Only changed classes are manipulated again. The
+ * component metadata is cached too, and only recomputed when the metadata files or the classes possibly carrying
+ * iPOJO annotations change.
+ * <p/>
+ * The raw jar is assembled by the {@link ParallelJarBuilder}, and the manipulated bundle is written directly to its
+ * final location, its entries being compressed in parallel.
+ */
+public class IncrementalIPOJOStrategy implements BuildStrategy {
+
+    /**
+     * The version of the cache format, changing it invalidates the existing caches.
+     */
+    private static final int CACHE_FORMAT = 1;
+
+    private static final String CACHE_SUFFIX = ".cache";
+
+    /**
+     * The manipulator handles as component annotations the annotations whose name contains one of these markers,
+     * ignoring the case (custom handler annotations included).
+     */
+    private static final byte[][] ANNOTATION_MARKERS = new byte[][] {
+            {'i', 'p', 'o', 'j', 'o'},
+            {'h', 'a', 'n', 'd', 'l', 'e', 'r'}
+    };
+
+    private final BuildStrategy m_builder;
+    private final File m_metadata;
+    private final File m_cache;
+    private final File m_output;
+    private final Reporter m_reporter = new ConsoleReporter();
+
+    private int m_manipulated;
+    private int m_reused;
+
+    /**
+     * Creates the strategy.
+     *
+     * @param metadata the iPOJO metadata file or directory, may not exist
+     * @param cache    the cache directory
+     */
+    public IncrementalIPOJOStrategy(File metadata, File cache) {
+        this(metadata, cache, null);
+    }
+
+    /**
+     * Creates the strategy writing the bundle to the given file.
+     *
+     * @param metadata the iPOJO metadata file or directory, may not exist
+     * @param cache    the cache directory
+     * @param output   the file receiving the bundle, a temporary file is used if {@literal null}
+     */
+    public IncrementalIPOJOStrategy(File metadata, File cache, File output) {
+        this(metadata, cache, output, new BndBuilder(new ParallelJarBuilder()));
+    }
+
+    /**
+     * Creates the strategy writing the bundle to the given file.
+     *
+     * @param metadata the iPOJO metadata file or directory, may not exist
+     * @param cache    the cache directory
+     * @param output   the file receiving the bundle, a temporary file is used if {@literal null}
+     * @param builder  the strategy building the bundle before the manipulation, bnd is used by default to compute
+     *                 the manifest
+     */
+    public IncrementalIPOJOStrategy(File metadata, File cache, File output, BuildStrategy builder) {
+        m_metadata = metadata;
+        m_cache = cache;
+        m_output = output;
+        m_builder = builder;
+    }
+
+    /**
+     * Creates the strategy.
+     *
+     * @param metadata the iPOJO metadata file or directory, may not exist
+     * @param cache    the cache directory
+     * @return the build strategy
+     */
+    public static BuildStrategy withiPOJO(File metadata, File cache) {
+        return new IncrementalIPOJOStrategy(metadata, cache);
+    }
+
+    /**
+     * @return the number of classes manipulated by the last build.
+     */
+    public int getManipulatedClassCount() {
+        return m_manipulated;
+    }
+
+    /**
+     * @return the number of classes whose manipulation was reused from the cache by the last build.
+     */
+    public int getReusedClassCount() {
+        return m_reused;
+    }
+
+    public InputStream build(Map<String, URL> resources, Map<String, String> headers) {
+        try {
+            final File out;
+            if (m_output == null) {
+                out = File.createTempFile("pojo_out", ".jar");
+                out.deleteOnExit();
+            } else {
+                out = m_output;
+                if (out.getParentFile() != null) {
+                    out.getParentFile().mkdirs();
+                }
+            }
+
+            File in = File.createTempFile("tiny", ".jar");
+            try {
+                if (m_builder instanceof ParallelJarBuilder) {
+                    // No need to go through a stream, the raw jar is written directly as the manipulator input.
+                    ParallelJarBuilder.write(in, resources, headers, false);
+                } else {
+                    InputStream bundle = m_builder.build(resources, headers);
+                    try {
+                        FileUtils.copyInputStreamToFile(bundle, in);
+                    } finally {
+                        bundle.close();
+                    }
+                }
+                manipulate(in, out);
+            } catch (IOException e) {
+                if (m_output == null) {
+                    out.delete();
+                }
+                throw e;
+            } finally {
+                in.delete();
+            }
+
+            if (m_output != null) {
+                return new FileInputStream(out);
+            }
+            // The temporary bundle is not needed once read.
+            return new FileInputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        out.delete();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot manipulate the bundle", e);
+        }
+    }
+
+    private void manipulate(File in, File out) throws IOException {
+        m_manipulated = 0;
+        m_reused = 0;
+        Set<String> used = new HashSet<String>();
+        m_cache.mkdirs();
+
+        JarFile jar = new JarFile(in);
+        try {
+            JarFileResourceStore store = new ParallelResourceStore(jar, out);
+            store.setManifest(jar.getManifest());
+            DefaultManifestBuilder builder = new DefaultManifestBuilder();
+            builder.setMetadataRenderer(new MetadataRenderer());
+            store.setManifestBuilder(builder);
+
+            // Same visitor chain as the Pojoization class.
+            ManipulatedResourcesWriter writer = new ManipulatedResourcesWriter();
+            writer.setReporter(m_reporter);
+            writer.setResourceStore(store);
+            CheckFieldConsistencyVisitor visitor = new CheckFieldConsistencyVisitor(writer);
+            visitor.setReporter(m_reporter);
+
+            List<Element> components = new ArrayList<Element>();
+            for (Element metadata : getMetadata(jar, store, used)) {
+                if (Metadatas.getComponentType(metadata) != null) {
+                    components.add(metadata);
+                } else {
+                    visitor.visitMetadata(metadata);
+                }
+            }
+
+            for (Element component : components) {
+                visit(visitor, store, component, used);
+            }
+            visitor.visitEnd();
+        } finally {
+            jar.close();
+        }
+
+        cleanCache(used);
+    }
+
+    private void visit(ManipulationVisitor visitor, JarFileResourceStore store, Element component,
+                       Set<String> used) throws IOException {
+        String type = Metadatas.getComponentType(component);
+        String path = Strings.asResourcePath(type);
+        byte[] bytecode = store.read(path);
+        if (bytecode == null) {
+            m_reporter.error("Cannot find bytecode for class '" + type + "': no bytecode found.");
+            return;
+        }
+
+        ManipulatedClass manipulated = getManipulatedClass(store, type, bytecode, used);
+        if (manipulated == null) {
+            return;
+        }
+        ManipulationResultVisitor result = visitor.visitManipulationResult(component);
+        result.visitClassStructure(manipulated.m_structure);
+        result.visitManipulatedResource(path, manipulated.m_bytecode);
+        for (Map.Entry<String, byte[]> inner : manipulated.m_inners.entrySet()) {
+            result.visitManipulatedResource(inner.getKey(), inner.getValue());
+        }
+        result.visitEnd();
+    }
+
+    /**
+     * Gets the component metadata, from the cache if neither the metadata files nor the classes referencing iPOJO
+     * have changed.
+     */
+    private List<Element> getMetadata(JarFile jar, JarFileResourceStore store, Set<String> used)
+            throws IOException {
+        File entry = new File(m_cache, computeMetadataKey(jar) + ".metadata" + CACHE_SUFFIX);
+        used.add(entry.getName());
+        if (entry.isFile()) {
+            try {
+                return readMetadata(entry);
+            } catch (IOException e) {
+                // Corrupted entry, compute it again.
+                entry.delete();
+            }
+        }
+
+        CompositeMetadataProvider provider = new CompositeMetadataProvider(m_reporter);
+        if (m_metadata != null && m_metadata.exists()) {
+            provider.addMetadataProvider(new FileMetadataProvider(m_metadata, m_reporter));
+        }
+        provider.addMetadataProvider(new AnnotationMetadataProvider(store, m_reporter));
+        List<Element> metadata = provider.getMetadatas();
+        // Must be written before the manipulation, as it adds the class structures to the component metadata.
+        writeMetadata(entry, metadata);
+        return metadata;
+    }
+
+    private String computeMetadataKey(JarFile jar) throws IOException {
+        MessageDigest digest = HashUtils.newDigest();
+        digest.update((byte) CACHE_FORMAT);
+        if (m_metadata != null) {
+            updateDigestWithMetadata(digest, m_metadata);
+        }
+
+        List<String> names = new ArrayList<String>();
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.endsWith(".class")) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            byte[] bytecode = read(jar.getInputStream(jar.getJarEntry(name)));
+            if (mayBeAnnotated(bytecode)) {
+                digest.update(name.getBytes("UTF-8"));
+                digest.update(bytecode);
+            }
+        }
+        return HashUtils.toHex(digest.digest());
+    }
+
+    private static void updateDigestWithMetadata(MessageDigest digest, File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    updateDigestWithMetadata(digest, child);
+                }
+            }
+        } else if (file.isFile() && file.getName().endsWith(".xml")) {
+            digest.update(file.getPath().getBytes("UTF-8"));
+            digest.update(FileUtils.readFileToByteArray(file));
+        }
+    }
+
+    /**
+     * Gets the manipulated class, from the cache if the class and its inner classes have not changed.
+     *
+     * @return the manipulated class, {@literal null} if the class cannot be manipulated
+     */
+    private ManipulatedClass getManipulatedClass(JarFileResourceStore store, String type, byte[] bytecode,
+                                                 Set<String> used) throws IOException {
+        File entry = new File(m_cache, HashUtils.sha1(bytecode) + ".class" + CACHE_SUFFIX);
+        if (entry.isFile()) {
+            try {
+                ManipulatedClass cached = ManipulatedClass.read(entry);
+                if (cached.isUpToDate(store)) {
+                    used.add(entry.getName());
+                    m_reused++;
+                    return cached;
+                }
+            } catch (IOException e) {
+                // Corrupted entry, manipulate the class again.
+            }
+        }
+
+        ManipulatedClass manipulated = new ManipulatedClass();
+        Manipulator manipulator = new Manipulator();
+        try {
+            manipulated.m_bytecode = manipulator.manipulate(bytecode);
+            manipulated.m_structure = manipulator.getManipulationMetadata();
+        } catch (IOException e) {
+            m_reporter.error("Cannot manipulate the class " + type + " : " + e.getMessage());
+            return null;
+        }
+
+        for (String inner : manipulator.getInnerClasses()) {
+            String path = inner + ".class";
+            byte[] innerBytecode = store.read(path);
+            if (innerBytecode == null) {
+                m_reporter.error("Cannot find inner class '" + path + "'");
+                continue;
+            }
+            InnerClassManipulator innerManipulator = new InnerClassManipulator(type.replace('.', '/'),
+                    manipulator.getFields().keySet());
+            try {
+                manipulated.m_inners.put(path, innerManipulator.manipulate(innerBytecode));
+                manipulated.m_innerHashes.put(path, HashUtils.sha1(innerBytecode));
+            } catch (IOException e) {
+                m_reporter.error("Cannot manipulate inner class '" + path + "'");
+            }
+        }
+
+        try {
+            manipulated.write(entry);
+            used.add(entry.getName());
+        } catch (IOException e) {
+            // Not cached, just manipulated again next time.
+            entry.delete();
+        }
+        m_manipulated++;
+        return manipulated;
+    }
+
+    /**
+     * Deletes the cache entries not used by the last build.
+     */
+    private void cleanCache(Set<String> used) {
+        File[] files = m_cache.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(CACHE_SUFFIX) && !used.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private static List<Element> readMetadata(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CACHE_FORMAT) {
+                throw new IOException("Unsupported cache format");
+            }
+            int count = in.readInt();
+            List<Element> metadata = new ArrayList<Element>(count);
+            for (int i = 0; i < count; i++) {
+                metadata.add(readElement(in));
+            }
+            return metadata;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeMetadata(File file, List<Element> metadata) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(CACHE_FORMAT);
+            out.writeInt(metadata.size());
+            for (Element element : metadata) {
+                writeElement(out, element);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, Element element) throws IOException {
+        out.writeUTF(element.getName());
+        writeNullable(out, element.getNameSpace());
+        Attribute[] attributes = element.getAttributes();
+        out.writeInt(attributes.length);
+        for (Attribute attribute : attributes) {
+            out.writeUTF(attribute.getName());
+            writeNullable(out, attribute.getNameSpace());
+            writeNullable(out, attribute.getValue());
+        }
+        Element[] elements = element.getElements();
+        out.writeInt(elements.length);
+        for (Element child : elements) {
+            writeElement(out, child);
+        }
+    }
+
+    private static Element readElement(DataInputStream in) throws IOException {
+        Element element = new Element(in.readUTF(), readNullable(in));
+        int attributes = in.readInt();
+        for (int i = 0; i < attributes; i++) {
+            String name = in.readUTF();
+            String namespace = readNullable(in);
+            element.addAttribute(new Attribute(name, namespace, readNullable(in)));
+        }
+        int elements = in.readInt();
+        for (int i = 0; i < elements; i++) {
+            element.addElement(readElement(in));
+        }
+        return element;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks whether a class may carry annotations read by the manipulator. The annotation names are in the constant
+     * pool, so the whole class file is searched: a match elsewhere only adds the class to the metadata key.
+     */
+    static boolean mayBeAnnotated(byte[] bytecode) {
+        for (byte[] marker : ANNOTATION_MARKERS) {
+            if (containsIgnoreCase(bytecode, marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Searches an ASCII marker, given in lower case, ignoring the case of the content.
+     */
+    private static boolean containsIgnoreCase(byte[] content, byte[] marker) {
+        for (int i = 0; i <= content.length - marker.length; i++) {
+            int j = 0;
+            while (j < marker.length && toLowerCase(content[i + j]) == marker[j]) {
+                j++;
+            }
+            if (j == marker.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        try {
+            return org.apache.commons.io.IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * A resource store writing the manipulated bundle with the {@link ParallelJarBuilder}, so the entries are
+     * compressed in parallel. Like the {@link JarFileResourceStore}, it keeps the entries of the source jar, and only
+     * replaces the manipulated classes.
+     */
+    private static class ParallelResourceStore extends JarFileResourceStore {
+        private final JarFile m_source;
+        private final File m_target;
+        private final Map<String, byte[]> m_manipulated = new LinkedHashMap<String, byte[]>();
+        private ManifestBuilder m_manifestBuilder;
+        private Manifest m_manifest;
+
+        private ParallelResourceStore(JarFile source, File target) throws IOException {
+            super(source, target);
+            m_source = source;
+            m_target = target;
+        }
+
+        @Override
+        public void setManifestBuilder(ManifestBuilder builder) {
+            super.setManifestBuilder(builder);
+            m_manifestBuilder = builder;
+        }
+
+        @Override
+        public void setManifest(Manifest manifest) {
+            super.setManifest(manifest);
+            m_manifest = manifest;
+        }
+
+        @Override
+        public void write(String path, byte[] content) throws IOException {
+            super.write(path, content);
+            m_manipulated.put(path, content);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Manifest manifest = m_manifestBuilder.build(m_manifest);
+            Map<String, Callable<byte[]>> contents = new LinkedHashMap<String, Callable<byte[]>>();
+            for (final JarEntry entry : Collections.list(m_source.entries())) {
+                if (JarFile.MANIFEST_NAME.equals(entry.getName())) {
+                    continue;
+                }
+                final byte[] manipulated = entry.getName().endsWith(".class")
+                        ? m_manipulated.get(entry.getName()) : null;
+                contents.put(entry.getName(), new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        if (manipulated != null) {
+                            return manipulated;
+                        }
+                        return IncrementalIPOJOStrategy.read(m_source.getInputStream(entry));
+                    }
+                });
+            }
+            ParallelJarBuilder.write(m_target, manifest, contents, true);
+        }
+    }
+
+    /**
+     * The result of the manipulation of a component class, as stored in the cache.
+     */
+    private static class ManipulatedClass {
+        private Element m_structure;
+        private byte[] m_bytecode;
+        private final Map<String, byte[]> m_inners = new LinkedHashMap<String, byte[]>();
+        private final Map<String, String> m_innerHashes = new LinkedHashMap<String, String>();
+
+        /**
+         * The outer class is identified by the cache key, but inner classes may have changed on their own.
+         */
+        private boolean isUpToDate(JarFileResourceStore store) throws IOException {
+            for (Map.Entry<String, String> inner : m_innerHashes.entrySet()) {
+                byte[] bytecode = store.read(inner.getKey());
+                if (bytecode == null || !inner.getValue().equals(HashUtils.sha1(bytecode))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(CACHE_FORMAT);
+                writeElement(out, m_structure);
+                writeBytes(out, m_bytecode);
+                out.writeInt(m_inners.size());
+                for (Map.Entry<String, byte[]> inner : m_inners.entrySet()) {
+                    out.writeUTF(inner.getKey());
+                    out.writeUTF(m_innerHashes.get(inner.getKey()));
+                    writeBytes(out, inner.getValue());
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private static ManipulatedClass read(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != CACHE_FORMAT) {
+                    throw new IOException("Unsupported cache format");
+                }
+                ManipulatedClass manipulated = new ManipulatedClass();
+                manipulated.m_structure = readElement(in);
+                manipulated.m_bytecode = readBytes(in);
+                int inners = in.readInt();
+                for (int i = 0; i < inners; i++) {
+                    String path = in.readUTF();
+                    manipulated.m_innerHashes.put(path, in.readUTF());
+                    manipulated.m_inners.put(path, readBytes(in));
+                }
+                return manipulated;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -16,19 +16,36 @@ package org.ow2.chameleon.testing.helpers;
 
 import org.apache.felix.ipojo.ComponentInstance;
 import org.apache.felix.ipojo.Factory;
+import org.apache.felix.ipojo.InstanceStateListener;
 import org.osgi.framework.BundleContext;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.fail;
 
 /**
  * Eases the creation of component instances.
+ * Created instances are indexed by name, and disposed in the reverse order of their creation, so consumers are
+ * disposed before the instances they are bound to. Instances created by the same bulk creation do not depend on
+ * each other, and are disposed concurrently. Instances added directly to {@link #instances} are disposed too.
  */
 public class InstanceCreationHelper extends AbstractHelper {
 
     private final FactoryHelper factoryHelper;
     protected List<ComponentInstance> instances = new ArrayList<ComponentInstance>();
+    private final ConcurrentMap<String, ComponentInstance> m_instancesByName =
+            new ConcurrentHashMap<String, ComponentInstance>();
+    /**
+     * The bulk creation of each instance created in bulk.
+     */
+    private final Map<ComponentInstance, List<ComponentInstance>> m_bulkCreations =
+            new IdentityHashMap<ComponentInstance, List<ComponentInstance>>();
 
     public InstanceCreationHelper(BundleContext context, FactoryHelper factory) {
         super(context);
@@ -37,8 +54,103 @@ public class InstanceCreationHelper extends AbstractHelper {
 
     @Override
     public void dispose() {
-        for (ComponentInstance instance : instances) {
+        List<ComponentInstance> created;
+        Map<ComponentInstance, List<ComponentInstance>> bulkCreations;
+        synchronized (this) {
+            created = new ArrayList<ComponentInstance>(instances);
+            bulkCreations = new IdentityHashMap<ComponentInstance, List<ComponentInstance>>(m_bulkCreations);
+            instances.clear();
+            m_instancesByName.clear();
+            m_bulkCreations.clear();
+        }
+        if (created.isEmpty()) {
+            return;
+        }
+
+        // Groups the instances in reverse creation order. Consecutive instances of the same bulk creation do not
+        // depend on each other.
+        List<List<ComponentInstance>> groups = new ArrayList<List<ComponentInstance>>();
+        List<ComponentInstance> bulk = null;
+        for (int i = created.size() - 1; i >= 0; i--) {
+            ComponentInstance instance = created.get(i);
+            List<ComponentInstance> creation = bulkCreations.get(instance);
+            if (creation == null || creation != bulk) {
+                groups.add(new ArrayList<ComponentInstance>());
+            }
+            groups.get(groups.size() - 1).add(instance);
+            bulk = creation;
+        }
+
+        long begin = System.nanoTime();
+        ExecutorService executor = null;
+        try {
+            for (List<ComponentInstance> group : groups) {
+                if (group.size() == 1) {
+                    disposeQuietly(group.get(0));
+                    continue;
+                }
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                }
+                disposeConcurrently(executor, group);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        System.out.println(String.format(Locale.ENGLISH, "%d instances disposed in %.3f ms", created.size(),
+                (System.nanoTime() - begin) / 1000000.0));
+    }
+
+    /**
+     * Disposes instances that do not depend on each other, and waits until all of them are disposed.
+     */
+    private void disposeConcurrently(ExecutorService executor, List<ComponentInstance> group) {
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final ComponentInstance instance : group) {
+            results.add(executor.submit(new Runnable() {
+                public void run() {
+                    disposeQuietly(instance);
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // Cannot happen, failures are reported by disposeQuietly.
+            }
+        }
+    }
+
+    /**
+     * Disposes an instance, reporting the failure instead of aborting the disposal of the other instances.
+     */
+    private static void disposeQuietly(ComponentInstance instance) {
+        try {
             instance.dispose();
+        } catch (RuntimeException e) {
+            System.err.println("Cannot dispose the instance " + instance.getInstanceName() + " : "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Records created instances.
+     *
+     * @param creation the instances created together, which do not depend on each other
+     */
+    private synchronized void register(List<ComponentInstance> creation) {
+        instances.addAll(creation);
+        for (ComponentInstance instance : creation) {
+            m_instancesByName.put(instance.getInstanceName(), instance);
+            if (creation.size() > 1) {
+                m_bulkCreations.put(instance, creation);
+            }
         }
     }
 
@@ -107,10 +219,10 @@ public class InstanceCreationHelper extends AbstractHelper {
     public ComponentInstance createComponentInstance(String factoryName,
                                                      Dictionary<String, String> configuration,
                                                      long timeout) {
-        Factory factory = factoryHelper.getFactory(factoryName, timeout);
+        Factory factory = factoryHelper.waitForValidFactory(factoryName, timeout);
         try {
             ComponentInstance instance = factory.createComponentInstance(configuration);
-            instances.add(instance);
+            register(Collections.singletonList(instance));
             return instance;
         } catch (Exception e) {
             fail(e.getMessage());
@@ -151,10 +263,10 @@ public class InstanceCreationHelper extends AbstractHelper {
     public ComponentInstance createComponentInstance(String factoryName,
                                                      Properties configuration,
                                                      long timeout) {
-        Factory factory = factoryHelper.getFactory(factoryName, timeout);
+        Factory factory = factoryHelper.waitForValidFactory(factoryName, timeout);
         try {
             ComponentInstance instance = factory.createComponentInstance(configuration);
-            instances.add(instance);
+            register(Collections.singletonList(instance));
             return instance;
         } catch (Exception e) {
             fail(e.getMessage());
@@ -230,6 +342,79 @@ public class InstanceCreationHelper extends AbstractHelper {
         return createComponentInstance(factoryName, configuration, timeout);
     }
 
+    /**
+     * Creates component instances in bulk, one per configuration, from the factory specified in the local bundle,
+     * and waits until all of them are valid.
+     * If the factory is not available, it waits for it 10 seconds. Fails if an instance cannot be created, or is
+     * not valid after 10 seconds.
+     *
+     * @param factoryName    the name of the component factory, in the local bundle.
+     * @param configurations the configurations of the instances to create.
+     * @return the report of the creation, giving the created instances in the order of the configurations.
+     */
+    public InstanceCreationReport createComponentInstances(String factoryName,
+                                                          List<? extends Dictionary<?, ?>> configurations) {
+        return createComponentInstances(factoryName, configurations, 0);
+    }
+
+    /**
+     * Creates component instances in bulk, one per configuration, from the factory specified in the local bundle,
+     * and waits until all of them are valid. The factory is resolved once, and the instances are created one after
+     * the other: iPOJO factories serialize the creation of their instances, so creating them concurrently would
+     * only add contention. The validity of the instances is tracked by a single instance state listener, so the
+     * creation does not wait for each instance to be valid.
+     * If the factory is not available, it adopts the timeout value given as parameter (in milliseconds).
+     * If timeout is set to 0, it sets the timeout to 10s. The same timeout applies to the validation of the
+     * instances.
+     *
+     * @param factoryName    the name of the component factory, in the local bundle.
+     * @param configurations the configurations of the instances to create.
+     * @param timeout        the timeout
+     * @return the report of the creation, giving the created instances in the order of the configurations.
+     */
+    public InstanceCreationReport createComponentInstances(String factoryName,
+                                                          List<? extends Dictionary<?, ?>> configurations,
+                                                          long timeout) {
+        Factory factory = factoryHelper.waitForValidFactory(factoryName, timeout);
+        InstanceValidityWaiter waiter = new InstanceValidityWaiter();
+        try {
+            long begin = System.nanoTime();
+            List<ComponentInstance> created = new ArrayList<ComponentInstance>(configurations.size());
+            String error = null;
+            for (Dictionary<?, ?> configuration : configurations) {
+                long start = System.nanoTime();
+                try {
+                    ComponentInstance instance = factory.createComponentInstance(configuration);
+                    created.add(instance);
+                    waiter.created(instance, start);
+                } catch (Exception e) {
+                    error = "Cannot create the instance #" + created.size() + " of " + factoryName + " : "
+                            + e.getMessage();
+                    break;
+                }
+            }
+            // The created instances are disposed with the helper, even on failure.
+            register(created);
+            if (error != null) {
+                fail(error);
+            }
+            long creationEnd = System.nanoTime();
+
+            boolean valid = waiter.await(TimeUtils.timeout(timeout));
+            InstanceCreationReport report = new InstanceCreationReport(created, waiter.m_latencies,
+                    creationEnd - begin, System.nanoTime() - begin);
+            if (!valid) {
+                List<String> pending = waiter.getPendingInstanceNames();
+                fail("Timeout ... " + pending.size() + " of " + created.size() + " instances of " + factoryName
+                        + " not valid after " + TimeUtils.timeout(timeout) + " ms : " + pending);
+            }
+            System.out.println(report);
+            return report;
+        } finally {
+            waiter.detach();
+        }
+    }
+
     /**
      * Gets a created instance from the instance name.
      *
@@ -238,14 +423,150 @@ public class InstanceCreationHelper extends AbstractHelper {
      *         if the instance was not created during the session.
      */
     public ComponentInstance getInstanceByName(String name) {
-        for (ComponentInstance instance : instances) {
-            if (instance.getInstanceName()
-                    .equals(name)) {
-                return instance;
+        ComponentInstance instance = m_instancesByName.get(name);
+        if (instance != null) {
+            return instance;
+        }
+        // Instances added directly to the list are not indexed.
+        synchronized (this) {
+            for (ComponentInstance candidate : instances) {
+                if (candidate.getInstanceName().equals(name)) {
+                    return candidate;
+                }
             }
         }
         return null;
     }
 
+    /**
+     * The report of the creation of component instances in bulk.
+     */
+    public static class InstanceCreationReport {
+
+        private final List<ComponentInstance> m_instances;
+        private final LatencyDistribution m_latencies;
+        private final long m_creation;
+        private final long m_total;
+
+        private InstanceCreationReport(List<ComponentInstance> instances, LatencyDistribution latencies,
+                                       long creation, long total) {
+            m_instances = instances;
+            m_latencies = latencies;
+            m_creation = creation;
+            m_total = total;
+        }
+
+        /**
+         * @return the created instances, in the order of the configurations
+         */
+        public List<ComponentInstance> getInstances() {
+            return m_instances;
+        }
+
+        /**
+         * @return the distribution of the latencies between the creation of each instance and its validation
+         */
+        public LatencyDistribution getLatencies() {
+            return m_latencies;
+        }
+
+        /**
+         * @return the time spent creating the instances, in nanoseconds
+         */
+        public long getCreationDuration() {
+            return m_creation;
+        }
+
+        /**
+         * @return the time elapsed until all the instances were valid, in nanoseconds
+         */
+        public long getTotalDuration() {
+            return m_total;
+        }
+
+        /**
+         * @return the number of instances created per second
+         */
+        public double getThroughput() {
+            return m_creation == 0 ? 0 : m_instances.size() * 1000000000.0 / m_creation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%d instances created in %.3f ms (%.1f instances/s), all valid in %.3f ms, "
+                            + "creation to validation: %s",
+                    m_instances.size(), m_creation / 1000000.0, getThroughput(), m_total / 1000000.0,
+                    m_latencies);
+        }
+    }
+
+    /**
+     * Records the validation of the instances created in bulk. The same listener is attached to all the instances.
+     */
+    private static class InstanceValidityWaiter extends EventWaiter implements InstanceStateListener {
+
+        private final List<ComponentInstance> m_instances = new ArrayList<ComponentInstance>();
+        private final Map<ComponentInstance, Long> m_pending = new HashMap<ComponentInstance, Long>();
+        private final LatencyDistribution m_latencies = new LatencyDistribution();
+
+        private void created(ComponentInstance instance, long start) {
+            synchronized (m_pending) {
+                m_instances.add(instance);
+                m_pending.put(instance, start);
+            }
+            // The state is checked once the listener is attached, so no validation can be missed.
+            instance.addInstanceStateListener(this);
+            if (instance.getState() == ComponentInstance.VALID) {
+                stateChanged(instance, ComponentInstance.VALID);
+            }
+        }
+
+        public void stateChanged(ComponentInstance instance, int state) {
+            if (state != ComponentInstance.VALID) {
+                return;
+            }
+            long now = System.nanoTime();
+            Long start;
+            synchronized (m_pending) {
+                start = m_pending.remove(instance);
+            }
+            if (start != null) {
+                m_latencies.record(now - start);
+                signal();
+            }
+        }
+
+        private List<String> getPendingInstanceNames() {
+            List<String> names = new ArrayList<String>();
+            synchronized (m_pending) {
+                for (ComponentInstance instance : m_pending.keySet()) {
+                    names.add(instance.getInstanceName());
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Detaches the listener from the instances. The listener is attached when the instances are created, so
+         * the wait does not detach it.
+         */
+        private void detach() {
+            List<ComponentInstance> instances;
+            synchronized (m_pending) {
+                instances = new ArrayList<ComponentInstance>(m_instances);
+            }
+            for (ComponentInstance instance : instances) {
+                instance.removeInstanceStateListener(this);
+            }
+        }
+
+        @Override
+        protected boolean isSatisfied() {
+            synchronized (m_pending) {
+                return m_pending.isEmpty();
+            }
+        }
+    }
 
 }
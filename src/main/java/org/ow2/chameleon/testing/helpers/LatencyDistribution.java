@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A distribution of latencies, in nanoseconds, used by the bulk operations to report their timings.
+ */
+public class LatencyDistribution {
+
+    private long[] m_values = new long[16];
+    private int m_size;
+    private boolean m_sorted = true;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (m_size == m_values.length) {
+            m_values = Arrays.copyOf(m_values, m_size * 2);
+        }
+        m_values[m_size++] = nanos;
+        m_sorted = false;
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public synchronized int getCount() {
+        return m_size;
+    }
+
+    /**
+     * Gets a percentile, using the nearest-rank method.
+     *
+     * @param percentile the percentile, between 0 (excluded) and 100
+     * @return the latency in nanoseconds, -1 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (m_size == 0) {
+            return -1;
+        }
+        if (!m_sorted) {
+            Arrays.sort(m_values, 0, m_size);
+            m_sorted = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * m_size);
+        return m_values[Math.min(m_size, Math.max(1, rank)) - 1];
+    }
+
+    /**
+     * @return the highest latency in nanoseconds, -1 if nothing has been recorded
+     */
+    public long getMax() {
+        return getPercentile(100);
+    }
+
+    /**
+     * @return the median, 90th, 99th percentiles and the maximum, in milliseconds
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                getPercentile(50) / 1000000.0, getPercentile(90) / 1000000.0, getPercentile(99) / 1000000.0,
+                getMax() / 1000000.0);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * A persistent index of the manifests of the jars of a distribution. Each entry is keyed by the absolute path of
+ * the jar and is valid as long as the size and the last modification date of the jar are unchanged, so only new or
+ * changed jars are opened. The index can be queried concurrently.
+ */
+public class ManifestIndex {
+
+    /**
+     * The default location of the index.
+     */
+    public static final String INDEX_PATH = "target/tested/manifest-index.properties";
+
+    private final File m_file;
+    private final Map<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger m_opened = new AtomicInteger();
+    private volatile boolean m_changed;
+
+    /**
+     * Creates the index.
+     *
+     * @param file the index file, {@literal null} to keep the index in memory only
+     */
+    public ManifestIndex(File file) {
+        m_file = file;
+        if (file != null && file.isFile()) {
+            Properties properties = new Properties();
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                for (String key : properties.stringPropertyNames()) {
+                    Entry entry = Entry.parse(properties.getProperty(key));
+                    if (entry != null) {
+                        m_entries.put(key, entry);
+                    }
+                }
+            } catch (IOException e) {
+                // Ignore it, the jars are opened again.
+            }
+        }
+    }
+
+    /**
+     * Gets the entry of the given jar, reading its manifest if the jar is not indexed or has changed.
+     *
+     * @param jar the jar
+     * @return the entry
+     */
+    public Entry get(File jar) {
+        String key = jar.getAbsolutePath();
+        long size = jar.length();
+        long modified = jar.lastModified();
+        Entry entry = m_entries.get(key);
+        if (entry != null && entry.m_size == size && entry.m_modified == modified) {
+            return entry;
+        }
+        entry = read(jar, size, modified);
+        m_entries.put(key, entry);
+        m_changed = true;
+        return entry;
+    }
+
+    private Entry read(File file, long size, long modified) {
+        m_opened.incrementAndGet();
+        try {
+            JarFile jar = new JarFile(file);
+            try {
+                Manifest manifest = jar.getManifest();
+                if (manifest != null) {
+                    Attributes attributes = manifest.getMainAttributes();
+                    if (attributes.getValue(Constants.BUNDLE_MANIFESTVERSION) != null) {
+                        String name = attributes.getValue(Constants.BUNDLE_SYMBOLICNAME);
+                        if (name != null && name.indexOf(';') != -1) {
+                            name = name.substring(0, name.indexOf(';'));
+                        }
+                        return new Entry(size, modified, true, name == null ? null : name.trim(),
+                                attributes.getValue(Constants.BUNDLE_VERSION));
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            // Not a valid jar, so not a bundle.
+        }
+        return new Entry(size, modified, false, null, null);
+    }
+
+    /**
+     * @return the number of jars opened since the creation of the index, the others were found in the index.
+     */
+    public int getOpenedJarCount() {
+        return m_opened.get();
+    }
+
+    /**
+     * Writes the index if it has changed. The entries of the jars that do not exist anymore are removed.
+     */
+    public void save() {
+        if (m_file == null || !m_changed) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : m_entries.entrySet()) {
+            if (new File(entry.getKey()).isFile()) {
+                properties.put(entry.getKey(), entry.getValue().toString());
+            }
+        }
+        try {
+            if (m_file.getParentFile() != null) {
+                m_file.getParentFile().mkdirs();
+            }
+            OutputStream out = new FileOutputStream(m_file);
+            try {
+                properties.store(out, "Manifest index: size|last modified|bundle|symbolic name|version");
+            } finally {
+                out.close();
+            }
+            m_changed = false;
+        } catch (IOException e) {
+            System.err.println("Cannot write the manifest index " + m_file.getAbsolutePath() + " : "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * An entry of the index.
+     */
+    public static class Entry {
+
+        private final long m_size;
+        private final long m_modified;
+        private final boolean m_bundle;
+        private final String m_symbolicName;
+        private final String m_version;
+
+        Entry(long size, long modified, boolean bundle, String symbolicName, String version) {
+            m_size = size;
+            m_modified = modified;
+            m_bundle = bundle;
+            m_symbolicName = symbolicName;
+            m_version = version;
+        }
+
+        /**
+         * @return whether the jar is a bundle
+         */
+        public boolean isBundle() {
+            return m_bundle;
+        }
+
+        /**
+         * @return the Bundle-SymbolicName without its directives, {@literal null} if not set
+         */
+        public String getSymbolicName() {
+            return m_symbolicName;
+        }
+
+        /**
+         * @return the Bundle-Version, {@literal null} if not set
+         */
+        public String getVersion() {
+            return m_version;
+        }
+
+        static Entry parse(String value) {
+            String[] segments = value.split("\\|", -1);
+            if (segments.length != 5) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(segments[0]), Long.parseLong(segments[1]),
+                        Boolean.parseBoolean(segments[2]),
+                        segments[3].length() == 0 ? null : segments[3],
+                        segments[4].length() == 0 ? null : segments[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return m_size + "|" + m_modified + "|" + m_bundle + "|" + (m_symbolicName == null ? "" : m_symbolicName)
+                    + "|" + (m_version == null ? "" : m_version);
+        }
+    }
+}
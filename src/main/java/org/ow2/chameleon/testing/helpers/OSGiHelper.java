@@ -60,6 +60,18 @@ public class OSGiHelper extends AbstractHelper {
         return bundle.install(url);
     }
 
+    public Bundle install(String location, byte[] content) {
+        return bundle.install(location, content);
+    }
+
+    public Bundle install(InMemoryBundle bundle) {
+        return this.bundle.install(bundle);
+    }
+
+    public BundleHelper.UpdateReport updateIfChanged(Bundle bundle, byte[] content, long timeout) {
+        return this.bundle.updateIfChanged(bundle, content, timeout);
+    }
+
     public Bundle installAndStart(String url) {
         return bundle.installAndStart(url);
     }
@@ -88,6 +100,22 @@ public class OSGiHelper extends AbstractHelper {
         return BundleHelper.isFragment(bundle);
     }
 
+    public boolean refreshPackages(Collection<Bundle> bundles, long timeout) {
+        return bundle.refreshPackages(bundles, timeout);
+    }
+
+    public boolean waitForBundleState(Bundle bundle, int stateMask, long timeout) {
+        return this.bundle.waitForBundleState(bundle, stateMask, timeout);
+    }
+
+    public Bundle waitForBundleState(String symbolicName, int stateMask, long timeout) {
+        return bundle.waitForBundleState(symbolicName, stateMask, timeout);
+    }
+
+    public boolean waitForBundleStates(Collection<Bundle> bundles, int stateMask, long timeout) {
+        return bundle.waitForBundleStates(bundles, stateMask, timeout);
+    }
+
     //===== Service =====
 
 
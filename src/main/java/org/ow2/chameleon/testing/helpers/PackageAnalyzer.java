@@ -0,0 +1,754 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the Import-Package and Export-Package clauses of a bundle from the constant pool of its classes.
+ * The packages referenced by each class are cached, keyed by the hash of the class file, so only new or changed
+ * classes are parsed. Import versions are taken from the packages exported by the jars of the class path, using the
+ * consumer range of the exported version ([major.minor, major+1)). Export versions are read from the bnd
+ * {@literal packageinfo} files.
+ */
+public class PackageAnalyzer {
+
+    /**
+     * The version of the cache format, changing it invalidates the existing caches.
+     */
+    private static final String CACHE_FORMAT = "2";
+
+    private static final String CACHE_FORMAT_KEY = "format";
+
+    private static final Pattern VERSION = Pattern.compile("(\\d+)(?:\\.(\\d+))?.*");
+
+    private final File m_cache;
+    private final Map<String, String> m_cached = new HashMap<String, String>();
+    private final Map<String, String> m_used = new TreeMap<String, String>();
+
+    private final Set<String> m_contained = new TreeSet<String>();
+    private final Set<String> m_referenced = new TreeSet<String>();
+    private final Map<String, String> m_exportVersions = new HashMap<String, String>();
+
+    private int m_parsed;
+
+    /**
+     * Creates the analyzer.
+     *
+     * @param cache the cache file, {@literal null} to disable the cache
+     */
+    public PackageAnalyzer(File cache) {
+        m_cache = cache;
+        if (cache != null && cache.isFile()) {
+            Properties properties = new Properties();
+            try {
+                InputStream in = new FileInputStream(cache);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                if (CACHE_FORMAT.equals(properties.getProperty(CACHE_FORMAT_KEY))) {
+                    properties.remove(CACHE_FORMAT_KEY);
+                    for (String key : properties.stringPropertyNames()) {
+                        m_cached.put(key, properties.getProperty(key));
+                    }
+                }
+            } catch (IOException e) {
+                // Ignore it, the classes are parsed again.
+            }
+        }
+    }
+
+    /**
+     * Analyzes a resource of the bundle. Classes are parsed, {@literal packageinfo} files give the version of their
+     * package, other resources are ignored.
+     *
+     * @param path    the path of the resource in the bundle
+     * @param content the content of the resource
+     */
+    public void analyze(String path, byte[] content) {
+        if (path.endsWith("/packageinfo")) {
+            String version = parsePackageInfo(content);
+            if (version != null) {
+                m_exportVersions.put(path.substring(0, path.lastIndexOf('/')).replace('/', '.'), version);
+            }
+            return;
+        }
+        if (!path.endsWith(".class")) {
+            return;
+        }
+
+        String pkg = getPackage(path);
+        if (pkg != null) {
+            m_contained.add(pkg);
+        }
+
+        String hash = HashUtils.sha1(content);
+        String packages = m_cached.get(hash);
+        if (packages == null) {
+            try {
+                packages = join(getReferencedPackages(content), ",");
+                m_parsed++;
+            } catch (IOException e) {
+                System.err.println("Cannot analyze " + path + " : " + e.getMessage());
+                return;
+            }
+        }
+        m_used.put(hash, packages);
+        if (packages.length() > 0) {
+            for (String referenced : packages.split(",")) {
+                m_referenced.add(referenced);
+            }
+        }
+    }
+
+    /**
+     * @return the number of classes parsed since the creation of the analyzer, the others were found in the cache.
+     */
+    public int getParsedClassCount() {
+        return m_parsed;
+    }
+
+    /**
+     * @return the packages containing classes of the bundle.
+     */
+    public Set<String> getContainedPackages() {
+        return m_contained;
+    }
+
+    /**
+     * @return the packages referenced by the bundle classes and not contained in the bundle, except the
+     * {@literal java.*} packages.
+     */
+    public Set<String> getImportedPackages() {
+        Set<String> imports = new TreeSet<String>();
+        for (String pkg : m_referenced) {
+            if (!pkg.startsWith("java.") && !m_contained.contains(pkg)) {
+                imports.add(pkg);
+            }
+        }
+        return imports;
+    }
+
+    /**
+     * Computes the Import-Package clause.
+     *
+     * @param versions the versions of the packages available at runtime (package name to version)
+     * @return the clause, empty if no package is imported
+     */
+    public String getImportPackage(Map<String, String> versions) {
+        List<String> clauses = new ArrayList<String>();
+        for (String pkg : getImportedPackages()) {
+            String range = toConsumerRange(versions.get(pkg));
+            clauses.add(range == null ? pkg : pkg + ";version=\"" + range + "\"");
+        }
+        return join(clauses, ", ");
+    }
+
+    /**
+     * Computes the Export-Package clause.
+     *
+     * @param packages the exported packages
+     * @return the clause, empty if no package is exported
+     */
+    public String getExportPackage(Collection<String> packages) {
+        List<String> clauses = new ArrayList<String>();
+        for (String pkg : new TreeSet<String>(packages)) {
+            String version = m_exportVersions.get(pkg);
+            clauses.add(version == null ? pkg : pkg + ";version=\"" + version + "\"");
+        }
+        return join(clauses, ", ");
+    }
+
+    /**
+     * Writes the cache, keeping only the entries of the analyzed classes.
+     */
+    public void save() {
+        if (m_cache == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.putAll(m_used);
+        properties.setProperty(CACHE_FORMAT_KEY, CACHE_FORMAT);
+        try {
+            if (m_cache.getParentFile() != null) {
+                m_cache.getParentFile().mkdirs();
+            }
+            OutputStream out = new FileOutputStream(m_cache);
+            try {
+                properties.store(out, "Packages referenced by class hash");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write the package cache " + m_cache.getAbsolutePath() + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the packages referenced by a class. The class constants and the descriptors of the members are
+     * parsed, as well as the generic signatures and the runtime visible annotations. As with bnd, the annotations
+     * not visible at runtime (CLASS retention) are ignored, they are not needed to resolve the bundle.
+     *
+     * @param classfile the class file
+     * @return the referenced packages, including the package of the class itself
+     * @throws IOException if the class file is invalid
+     */
+    public static Set<String> getReferencedPackages(byte[] classfile) throws IOException {
+        try {
+            return new ClassParser(classfile).parse();
+        } catch (RuntimeException e) {
+            // Truncated class file, or malformed descriptor.
+            throw new IOException("Invalid class file : " + e);
+        }
+    }
+
+    /**
+     * Collects the versions of the packages exported by the jars of the given class path.
+     *
+     * @param classpath the class path
+     * @return the package name to version map
+     */
+    public static Map<String, String> getExportedVersions(String classpath) {
+        Map<String, String> versions = new HashMap<String, String>();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            File file = new File(entry);
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                JarFile jar = new JarFile(file);
+                try {
+                    Manifest manifest = jar.getManifest();
+                    String exports = manifest == null ? null : manifest.getMainAttributes().getValue(Constants
+                            .EXPORT_PACKAGE);
+                    if (exports != null) {
+                        parseExports(exports, versions);
+                    }
+                } finally {
+                    jar.close();
+                }
+            } catch (IOException e) {
+                // Not a jar file.
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Parses an Export-Package header, the first export of a package wins.
+     */
+    static void parseExports(String header, Map<String, String> versions) {
+        for (String clause : split(header, ',')) {
+            List<String> packages = new ArrayList<String>();
+            String version = "0.0.0";
+            for (String part : split(clause, ';')) {
+                int eq = part.indexOf('=');
+                if (eq == -1) {
+                    packages.add(part.trim());
+                } else if (part.substring(0, eq).trim().equals(Constants.VERSION_ATTRIBUTE)) {
+                    version = part.substring(eq + 1).trim().replace("\"", "");
+                }
+            }
+            for (String pkg : packages) {
+                if (!versions.containsKey(pkg)) {
+                    versions.put(pkg, version);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the consumer range of a version: [major.minor, major+1).
+     *
+     * @param version the version, may be {@literal null}
+     * @return the range, {@literal null} if the version is not set or is 0.0.0
+     */
+    static String toConsumerRange(String version) {
+        if (version == null) {
+            return null;
+        }
+        Matcher matcher = VERSION.matcher(version);
+        if (!matcher.matches()) {
+            return null;
+        }
+        int major = Integer.parseInt(matcher.group(1));
+        int minor = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+        if (major == 0 && minor == 0) {
+            return null;
+        }
+        return "[" + major + "." + minor + "," + (major + 1) + ")";
+    }
+
+    private static String parsePackageInfo(byte[] content) {
+        try {
+            String text = new String(content, "UTF-8").trim();
+            if (text.startsWith("version")) {
+                return text.substring("version".length()).trim().split("\\s")[0];
+            }
+        } catch (IOException e) {
+            // Cannot happen, UTF-8 is always supported.
+        }
+        return null;
+    }
+
+    /**
+     * Splits a header on the given separator, ignoring the separators between quotes.
+     */
+    private static List<String> split(String value, char separator) {
+        List<String> parts = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (c == separator && !quoted) {
+                parts.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        parts.add(current.toString());
+        return parts;
+    }
+
+    private static void addPackage(Set<String> packages, String internalName) {
+        String pkg = getPackage(internalName);
+        if (pkg != null) {
+            packages.add(pkg);
+        }
+    }
+
+    /**
+     * Gets the package of a class from its path or internal name.
+     *
+     * @return the package name, {@literal null} for the default package or an invalid name
+     */
+    private static String getPackage(String path) {
+        int index = path.lastIndexOf('/');
+        if (index <= 0) {
+            return null;
+        }
+        String pkg = path.substring(0, index);
+        for (String segment : pkg.split("/")) {
+            if (segment.length() == 0 || !Character.isJavaIdentifierStart(segment.charAt(0))) {
+                return null;
+            }
+            for (int i = 1; i < segment.length(); i++) {
+                if (!Character.isJavaIdentifierPart(segment.charAt(i))) {
+                    return null;
+                }
+            }
+        }
+        return pkg.replace('/', '.');
+    }
+
+    private static String join(Collection<String> values, String separator) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(separator);
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parses the structure of a class file to find the referenced types.
+     */
+    private static class ClassParser {
+        private final DataInputStream m_in;
+        private final Set<String> m_packages = new TreeSet<String>();
+        private String[] m_strings;
+
+        private ClassParser(byte[] classfile) {
+            m_in = new DataInputStream(new ByteArrayInputStream(classfile));
+        }
+
+        private Set<String> parse() throws IOException {
+            if (m_in.readInt() != 0xCAFEBABE) {
+                throw new IOException("Not a class file");
+            }
+            m_in.readUnsignedShort();
+            m_in.readUnsignedShort();
+
+            int count = m_in.readUnsignedShort();
+            m_strings = new String[count];
+            List<Integer> classes = new ArrayList<Integer>();
+            List<Integer> descriptors = new ArrayList<Integer>();
+            for (int i = 1; i < count; i++) {
+                int tag = m_in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Utf8
+                        m_strings[i] = m_in.readUTF();
+                        break;
+                    case 7: // Class
+                        classes.add(m_in.readUnsignedShort());
+                        break;
+                    case 12: // NameAndType, the descriptor of a used field or method
+                        m_in.readUnsignedShort();
+                        descriptors.add(m_in.readUnsignedShort());
+                        break;
+                    case 16: // MethodType
+                        descriptors.add(m_in.readUnsignedShort());
+                        break;
+                    case 8: // String
+                    case 19: // Module
+                    case 20: // Package
+                        m_in.readUnsignedShort();
+                        break;
+                    case 15: // MethodHandle
+                        m_in.readUnsignedByte();
+                        m_in.readUnsignedShort();
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        m_in.readInt();
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        m_in.readLong();
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+            for (int index : classes) {
+                String name = m_strings[index];
+                if (name.charAt(0) == '[') {
+                    parseSignature(name);
+                } else {
+                    addPackage(m_packages, name);
+                }
+            }
+            for (int index : descriptors) {
+                parseSignature(m_strings[index]);
+            }
+
+            // Access flags, this class, super class, then the interfaces, which are class constants.
+            m_in.readUnsignedShort();
+            m_in.readUnsignedShort();
+            m_in.readUnsignedShort();
+            int interfaces = m_in.readUnsignedShort();
+            for (int i = 0; i < interfaces; i++) {
+                m_in.readUnsignedShort();
+            }
+            // Fields, then methods.
+            for (int kind = 0; kind < 2; kind++) {
+                int members = m_in.readUnsignedShort();
+                for (int i = 0; i < members; i++) {
+                    m_in.readUnsignedShort();
+                    m_in.readUnsignedShort();
+                    parseSignature(m_strings[m_in.readUnsignedShort()]);
+                    parseAttributes();
+                }
+            }
+            parseAttributes();
+            return m_packages;
+        }
+
+        private void parseAttributes() throws IOException {
+            int count = m_in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String name = m_strings[m_in.readUnsignedShort()];
+                int length = m_in.readInt();
+                if ("Signature".equals(name)) {
+                    parseSignature(m_strings[m_in.readUnsignedShort()]);
+                } else if ("RuntimeVisibleAnnotations".equals(name)) {
+                    parseAnnotations();
+                } else if ("RuntimeVisibleParameterAnnotations".equals(name)) {
+                    int parameters = m_in.readUnsignedByte();
+                    for (int j = 0; j < parameters; j++) {
+                        parseAnnotations();
+                    }
+                } else if ("RuntimeVisibleTypeAnnotations".equals(name)) {
+                    parseTypeAnnotations();
+                } else if ("AnnotationDefault".equals(name)) {
+                    parseElementValue();
+                } else if ("Code".equals(name)) {
+                    // Max stack, max locals, code, exception table, then the attributes of the code.
+                    m_in.readUnsignedShort();
+                    m_in.readUnsignedShort();
+                    skip(m_in.readInt());
+                    skip(m_in.readUnsignedShort() * 8);
+                    parseAttributes();
+                } else {
+                    // The invisible annotations are skipped too.
+                    skip(length);
+                }
+            }
+        }
+
+        private void parseAnnotations() throws IOException {
+            int count = m_in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                parseAnnotation();
+            }
+        }
+
+        private void parseAnnotation() throws IOException {
+            parseSignature(m_strings[m_in.readUnsignedShort()]);
+            int pairs = m_in.readUnsignedShort();
+            for (int i = 0; i < pairs; i++) {
+                m_in.readUnsignedShort();
+                parseElementValue();
+            }
+        }
+
+        private void parseElementValue() throws IOException {
+            int tag = m_in.readUnsignedByte();
+            switch (tag) {
+                case 'e':
+                    parseSignature(m_strings[m_in.readUnsignedShort()]);
+                    m_in.readUnsignedShort();
+                    break;
+                case 'c':
+                    parseSignature(m_strings[m_in.readUnsignedShort()]);
+                    break;
+                case '@':
+                    parseAnnotation();
+                    break;
+                case '[':
+                    int count = m_in.readUnsignedShort();
+                    for (int i = 0; i < count; i++) {
+                        parseElementValue();
+                    }
+                    break;
+                default:
+                    // A constant.
+                    m_in.readUnsignedShort();
+            }
+        }
+
+        private void parseTypeAnnotations() throws IOException {
+            int count = m_in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                int target = m_in.readUnsignedByte();
+                switch (target) {
+                    case 0x00:
+                    case 0x01:
+                    case 0x16:
+                        skip(1);
+                        break;
+                    case 0x10:
+                    case 0x17:
+                    case 0x42:
+                    case 0x43:
+                    case 0x44:
+                    case 0x45:
+                    case 0x46:
+                        skip(2);
+                        break;
+                    case 0x11:
+                    case 0x12:
+                        skip(2);
+                        break;
+                    case 0x13:
+                    case 0x14:
+                    case 0x15:
+                        break;
+                    case 0x40:
+                    case 0x41:
+                        skip(m_in.readUnsignedShort() * 6);
+                        break;
+                    case 0x47:
+                    case 0x48:
+                    case 0x49:
+                    case 0x4A:
+                    case 0x4B:
+                        skip(3);
+                        break;
+                    default:
+                        throw new IOException("Unknown type annotation target " + target);
+                }
+                // Type path.
+                skip(m_in.readUnsignedByte() * 2);
+                parseAnnotation();
+            }
+        }
+
+        private void skip(int length) throws IOException {
+            if (m_in.skipBytes(length) != length) {
+                throw new IOException("Truncated class file");
+            }
+        }
+
+        /**
+         * Parses a descriptor or a generic signature (of a class, a method or a field).
+         */
+        private void parseSignature(String signature) {
+            new SignatureParser(signature, m_packages).parse();
+        }
+    }
+
+    /**
+     * Parses the descriptors and generic signatures, as defined in the JVM specification (4.3 and 4.7.9.1).
+     */
+    private static class SignatureParser {
+        private final String m_signature;
+        private final Set<String> m_packages;
+        private int m_position;
+
+        private SignatureParser(String signature, Set<String> packages) {
+            m_signature = signature;
+            m_packages = packages;
+        }
+
+        private void parse() {
+            if (peek() == '<') {
+                parseTypeParameters();
+            }
+            if (peek() == '(') {
+                m_position++;
+                while (peek() != ')') {
+                    parseType();
+                }
+                m_position++;
+                // Return type, then the thrown exceptions.
+                parseType();
+                while (m_position < m_signature.length() && peek() == '^') {
+                    m_position++;
+                    parseType();
+                }
+            } else {
+                // Field type, or super class and interfaces.
+                while (m_position < m_signature.length()) {
+                    parseType();
+                }
+            }
+        }
+
+        private void parseTypeParameters() {
+            m_position++;
+            while (peek() != '>') {
+                // Name, class bound (may be empty), interface bounds.
+                m_position = m_signature.indexOf(':', m_position) + 1;
+                if (peek() != ':' && peek() != '>') {
+                    parseType();
+                }
+                while (peek() == ':') {
+                    m_position++;
+                    parseType();
+                }
+            }
+            m_position++;
+        }
+
+        private void parseType() {
+            char c = peek();
+            switch (c) {
+                case 'L':
+                    parseClassType();
+                    break;
+                case 'T':
+                    m_position = m_signature.indexOf(';', m_position) + 1;
+                    break;
+                case '[':
+                    m_position++;
+                    parseType();
+                    break;
+                case 'B':
+                case 'C':
+                case 'D':
+                case 'F':
+                case 'I':
+                case 'J':
+                case 'S':
+                case 'Z':
+                case 'V':
+                    m_position++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid signature " + m_signature);
+            }
+        }
+
+        private void parseClassType() {
+            int start = ++m_position;
+            while (peek() != ';' && peek() != '<') {
+                m_position++;
+            }
+            addPackage(m_packages, m_signature.substring(start, m_position));
+            while (true) {
+                char c = peek();
+                if (c == '<') {
+                    parseTypeArguments();
+                } else if (c == '.') {
+                    // Inner class of a parameterized type, in the same package.
+                    m_position++;
+                    while (peek() != ';' && peek() != '<' && peek() != '.') {
+                        m_position++;
+                    }
+                } else {
+                    m_position++;
+                    return;
+                }
+            }
+        }
+
+        private void parseTypeArguments() {
+            m_position++;
+            while (peek() != '>') {
+                char c = peek();
+                if (c == '*') {
+                    m_position++;
+                } else {
+                    if (c == '+' || c == '-') {
+                        m_position++;
+                    }
+                    parseType();
+                }
+            }
+            m_position++;
+        }
+
+        private char peek() {
+            return m_signature.charAt(m_position);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.ops4j.pax.tinybundles.core.BuildStrategy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A TinyBundles raw build strategy streaming the jar to a file.
+ * The resources are read, checksummed and compressed in parallel, while the entries are written in order. As
+ * {@link java.util.jar.JarOutputStream} compresses entries itself, on the writing thread, the entries are written
+ * by a minimal zip writer.
+ * The jar produced by {@link #build(Map, Map)} is an intermediate one (it is read by the iPOJO manipulator
+ * afterwards), so its entries are stored without compression. All the entries get the same fixed time, so unchanged
+ * inputs give the same jar, byte for byte.
+ */
+public class ParallelJarBuilder implements BuildStrategy {
+
+    /**
+     * The largest size and offset supported without the zip64 extensions.
+     */
+    private static final long MAX_ZIP_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * The largest number of entries supported without the zip64 extensions.
+     */
+    private static final int MAX_ZIP_ENTRIES = 0xFFFF;
+
+    /**
+     * Builds the intermediate jar in a temporary file. The file is deleted when the returned stream is closed.
+     */
+    public InputStream build(Map<String, URL> resources, Map<String, String> headers) {
+        try {
+            final File jar = File.createTempFile("raw", ".jar");
+            jar.deleteOnExit();
+            try {
+                write(jar, resources, headers, false);
+            } catch (IOException e) {
+                jar.delete();
+                throw e;
+            }
+            return new FileInputStream(jar) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        jar.delete();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot build the bundle", e);
+        }
+    }
+
+    /**
+     * Writes a compressed jar.
+     *
+     * @param jar       the output file
+     * @param resources the resources (path in the jar to url)
+     * @param headers   the manifest headers
+     * @throws IOException if the jar cannot be written
+     */
+    public static void write(File jar, Map<String, URL> resources, Map<String, String> headers) throws IOException {
+        write(jar, resources, headers, true);
+    }
+
+    /**
+     * Writes the jar.
+     *
+     * @param jar       the output file
+     * @param resources the resources (path in the jar to url)
+     * @param headers   the manifest headers
+     * @param compress  whether the entries are compressed, or stored
+     * @throws IOException if the jar cannot be written
+     */
+    public static void write(File jar, Map<String, URL> resources, Map<String, String> headers,
+                             boolean compress) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            attributes.putValue(header.getKey(), header.getValue());
+        }
+
+        // Sorted, so the output does not depend on the order of the map.
+        Map<String, Callable<byte[]>> contents = new TreeMap<String, Callable<byte[]>>();
+        for (final Map.Entry<String, URL> resource : resources.entrySet()) {
+            contents.put(resource.getKey(), new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return read(resource.getValue());
+                }
+            });
+        }
+        write(jar, manifest, contents, compress);
+    }
+
+    /**
+     * Writes the jar. The contents are read (and compressed) in parallel, and written in the iteration order of the
+     * map, after the manifest.
+     *
+     * @param jar      the output file
+     * @param manifest the manifest
+     * @param contents the content of each entry (path in the jar to content)
+     * @param compress whether the entries are compressed, or stored
+     * @throws IOException if the jar cannot be written
+     */
+    static void write(File jar, Manifest manifest, Map<String, Callable<byte[]>> contents, final boolean compress)
+            throws IOException {
+        ByteArrayOutputStream manifestContent = new ByteArrayOutputStream();
+        manifest.write(manifestContent);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<PreparedEntry>> entries = new ArrayList<Future<PreparedEntry>>();
+            for (final Map.Entry<String, Callable<byte[]>> content : contents.entrySet()) {
+                entries.add(executor.submit(new Callable<PreparedEntry>() {
+                    public PreparedEntry call() throws Exception {
+                        return new PreparedEntry(content.getKey(), content.getValue().call(), compress);
+                    }
+                }));
+            }
+
+            ZipWriter out = new ZipWriter(new BufferedOutputStream(new FileOutputStream(jar), 65536));
+            try {
+                // The manifest must be the first entry.
+                out.write(new PreparedEntry(JarFile.MANIFEST_NAME, manifestContent.toByteArray(), compress));
+                for (Future<PreparedEntry> future : entries) {
+                    out.write(get(future));
+                }
+                out.finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static PreparedEntry get(Future<PreparedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building the jar");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot read a jar entry", e.getCause());
+        }
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            File file = FileUtils.toFile(url);
+            // The size is known, so the content is read at once without intermediate copies.
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] content = new byte[(int) raf.length()];
+                raf.readFully(content);
+                return content;
+            } finally {
+                raf.close();
+            }
+        }
+        InputStream stream = url.openStream();
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * An entry ready to be written: its checksum is computed, and its content is compressed if required.
+     */
+    private static class PreparedEntry {
+        private final byte[] m_name;
+        private final int m_method;
+        private final byte[] m_data;
+        private final long m_size;
+        private final long m_crc;
+
+        private PreparedEntry(String name, byte[] content, boolean compress) throws IOException {
+            m_name = name.getBytes("UTF-8");
+            m_size = content.length;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            m_crc = crc.getValue();
+            byte[] deflated = compress ? deflate(content) : null;
+            // Like the jar tool, entries that do not shrink are stored.
+            if (deflated != null && deflated.length < content.length) {
+                m_method = ZipEntry.DEFLATED;
+                m_data = deflated;
+            } else {
+                m_method = ZipEntry.STORED;
+                m_data = content;
+            }
+        }
+
+        private static byte[] deflate(byte[] content) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Writes prepared entries in the zip format: a local header followed by the data for each entry, then the
+     * central directory.
+     */
+    private static class ZipWriter {
+        /**
+         * Names are encoded in UTF-8.
+         */
+        private static final int UTF8_FLAG = 0x800;
+
+        /**
+         * The time of all the entries, midnight, in the MS-DOS format.
+         */
+        private static final int DOS_TIME = 0;
+
+        /**
+         * The date of all the entries, 1980-01-01 (the MS-DOS epoch), in the MS-DOS format.
+         */
+        private static final int DOS_DATE = 1 << 5 | 1;
+
+        private final OutputStream m_out;
+        private final ByteArrayOutputStream m_directory = new ByteArrayOutputStream();
+        private long m_offset;
+        private int m_count;
+
+        private ZipWriter(OutputStream out) {
+            m_out = out;
+        }
+
+        private void write(PreparedEntry entry) throws IOException {
+            if (m_count == MAX_ZIP_ENTRIES || entry.m_size > MAX_ZIP_SIZE
+                    || m_offset + entry.m_data.length > MAX_ZIP_SIZE) {
+                throw new IOException("The jar is too large (zip64 is not supported)");
+            }
+            long offset = m_offset;
+            writeInt(m_out, 0x04034b50);
+            writeCommonHeader(m_out, entry);
+            m_out.write(entry.m_name);
+            m_out.write(entry.m_data);
+            m_offset += 30 + entry.m_name.length + entry.m_data.length;
+
+            writeInt(m_directory, 0x02014b50);
+            writeShort(m_directory, 20);
+            writeCommonHeader(m_directory, entry);
+            // Comment length, disk number, internal and external attributes.
+            writeShort(m_directory, 0);
+            writeShort(m_directory, 0);
+            writeShort(m_directory, 0);
+            writeInt(m_directory, 0);
+            writeInt(m_directory, (int) offset);
+            m_directory.write(entry.m_name);
+            m_count++;
+        }
+
+        /**
+         * Writes the fields shared by the local and central headers, from the version needed to extract to the
+         * extra field length.
+         */
+        private void writeCommonHeader(OutputStream out, PreparedEntry entry) throws IOException {
+            writeShort(out, 20);
+            writeShort(out, UTF8_FLAG);
+            writeShort(out, entry.m_method);
+            writeShort(out, DOS_TIME);
+            writeShort(out, DOS_DATE);
+            writeInt(out, (int) entry.m_crc);
+            writeInt(out, entry.m_data.length);
+            writeInt(out, (int) entry.m_size);
+            writeShort(out, entry.m_name.length);
+            writeShort(out, 0);
+        }
+
+        private void finish() throws IOException {
+            if (m_offset + m_directory.size() > MAX_ZIP_SIZE) {
+                throw new IOException("The jar is too large (zip64 is not supported)");
+            }
+            m_directory.writeTo(m_out);
+            writeInt(m_out, 0x06054b50);
+            // Disk numbers.
+            writeShort(m_out, 0);
+            writeShort(m_out, 0);
+            writeShort(m_out, m_count);
+            writeShort(m_out, m_count);
+            writeInt(m_out, m_directory.size());
+            writeInt(m_out, (int) m_offset);
+            // Comment length.
+            writeShort(m_out, 0);
+        }
+
+        private void close() throws IOException {
+            m_out.close();
+        }
+
+        private static void writeShort(OutputStream out, int value) throws IOException {
+            out.write(value & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+        }
+
+        private static void writeInt(OutputStream out, int value) throws IOException {
+            writeShort(out, value & 0xFFFF);
+            writeShort(out, (value >>> 16) & 0xFFFF);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads properties files (chameleon properties, system properties and .cfg files). The loaded properties are
+ * cached, and a file is parsed again only when its size or its last modification date change.
+ */
+public final class PropertiesLoader {
+
+    private static final ConcurrentMap<String, CachedProperties> CACHE =
+            new ConcurrentHashMap<String, CachedProperties>();
+
+    private PropertiesLoader() {
+        // Avoid direct instantiation.
+    }
+
+    /**
+     * Loads a properties file, using the standard properties format (ISO 8859-1 with unicode escapes).
+     *
+     * @param file the file
+     * @return the read-only properties
+     * @throws IOException if the file cannot be read
+     */
+    public static Map<String, String> load(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        CachedProperties cached = CACHE.get(key);
+        if (cached != null && cached.m_size == size && cached.m_modified == modified) {
+            return cached.m_properties;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            map.put(name, properties.getProperty(name));
+        }
+        cached = new CachedProperties(size, modified, Collections.unmodifiableMap(map));
+        CACHE.put(key, cached);
+        return cached.m_properties;
+    }
+
+    private static class CachedProperties {
+        private final long m_size;
+        private final long m_modified;
+        private final Map<String, String> m_properties;
+
+        private CachedProperties(long size, long modified, Map<String, String> properties) {
+            m_size = size;
+            m_modified = modified;
+            m_properties = properties;
+        }
+    }
+}
@@ -15,98 +15,291 @@
 package org.ow2.chameleon.testing.helpers;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.ops4j.pax.exam.Option;
 import org.ops4j.pax.tinybundles.core.TinyBundle;
 import org.ops4j.pax.tinybundles.core.TinyBundles;
 import org.osgi.framework.Constants;
-import org.ow2.chameleon.testing.tinybundles.ipojo.IPOJOStrategy;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.ops4j.pax.exam.CoreOptions.bundle;
 
 /**
  * Builds a bundle from the src/main/java sources.
+ * The bundle is cached in target/tested. Two fingerprints of the inputs (target/classes, src/main/resources, the
+ * extra exports, the class path used to compute the imports, and the version of this library) are stored next to
+ * it: a stamp made of the size and modification date of the files, checked first, and a hash of their content,
+ * only computed when the stamp changed. The bundle is only rebuilt when the content hash changes.
  */
 public class TestBundleOption {
 
+    /**
+     * The location of the built bundle.
+     */
+    public static final String TEST_BUNDLE_PATH = "target/tested/test-bundle.jar";
+
+    /**
+     * The location of the iPOJO manipulation cache.
+     */
+    public static final String IPOJO_CACHE_PATH = "target/tested/ipojo-cache";
+
+    /**
+     * The location of the cache of the packages referenced by each class.
+     */
+    public static final String PACKAGE_CACHE_PATH = "target/tested/packages.properties";
+
     public static Option testBundle(List<String> extraExports, boolean deleteTestBundle) {
-        File out = new File("target/tested/test-bundle.jar");
+        File out = new File(TEST_BUNDLE_PATH);
+        File hashFile = new File(out.getParentFile(), out.getName() + ".sha1");
+        File[] roots = {new File("target/classes"), new File("src/main/resources")};
+        String stamp = computeInputStamp(extraExports, roots);
+        String hash = null;
         if (out.exists()) {
-            if (deleteTestBundle) {
-                out.delete();
-            } else {
-                try {
-                    return bundle(out.toURI().toURL().toExternalForm());
-                } catch (MalformedURLException e) {
-                    // Ignore it.
+            String[] stored = readHash(hashFile);
+            if (!deleteTestBundle && stored != null) {
+                boolean upToDate = stamp.equals(stored[0]);
+                if (!upToDate) {
+                    // The files were touched, check whether their content changed.
+                    hash = computeInputHash(extraExports, roots);
+                    upToDate = hash.equals(stored[1]);
+                    if (upToDate) {
+                        try {
+                            writeHash(hashFile, stamp, hash);
+                        } catch (IOException e) {
+                            // Ignore it, the content will be hashed again next time.
+                        }
+                    }
+                }
+                if (upToDate) {
+                    System.out.println("Test bundle up to date, reusing " + out.getPath());
+                    try {
+                        return bundle(out.toURI().toURL().toExternalForm());
+                    } catch (MalformedURLException e) {
+                        // Ignore it, rebuild the bundle.
+                    }
                 }
             }
+            out.delete();
+            hashFile.delete();
+        }
+        if (hash == null) {
+            hash = computeInputHash(extraExports, roots);
         }
 
+        long begin = System.currentTimeMillis();
         TinyBundle tested = TinyBundles.bundle();
 
-        // We look inside target/classes to find the class and resources
-        File classes = new File("target/classes");
-        Collection<File> files = FileUtils.listFilesAndDirs(classes, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        List<String> exports = new ArrayList<String>();
+        PackageAnalyzer analyzer = new PackageAnalyzer(new File(PACKAGE_CACHE_PATH));
+
+        try {
+            // We look inside target/classes to find the class and resources
+            int count = addResources(tested, analyzer, new File("target/classes"), "");
+            analyzer.save();
+
+            // By convention we export the service and services packages, and the extra exports.
+            List<String> exports = new ArrayList<String>();
+            for (String pkg : analyzer.getContainedPackages()) {
+                if (isServicePackage(pkg)) {
+                    exports.add(pkg);
+                }
+            }
+            exports.addAll(extraExports);
+            String exportClause = analyzer.getExportPackage(exports);
+            String importClause = analyzer.getImportPackage(PackageAnalyzer.getExportedVersions(
+                    System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"))));
+
+            tested.set(Constants.BUNDLE_MANIFESTVERSION, "2")
+                    .set(Constants.BUNDLE_SYMBOLICNAME, BaseTest.TEST_BUNDLE_SYMBOLIC_NAME);
+            if (exportClause.length() > 0) {
+                tested.set(Constants.EXPORT_PACKAGE, exportClause);
+            }
+            if (importClause.length() > 0) {
+                tested.set(Constants.IMPORT_PACKAGE, importClause);
+            }
+
+            // The headers are computed, so bnd is not needed. The bundle is directly written to its final location.
+            IncrementalIPOJOStrategy strategy = new IncrementalIPOJOStrategy(new File("src/main/resources"),
+                    new File(IPOJO_CACHE_PATH), out, new ParallelJarBuilder());
+            tested.build(strategy).close();
+            writeHash(hashFile, stamp, hash);
+            System.out.println("Test bundle built in " + (System.currentTimeMillis() - begin) + " ms : "
+                    + out.getPath() + " (" + count + " resources, " + analyzer.getParsedClassCount()
+                    + " classes analyzed, " + (out.length() / 1024) + " KB, "
+                    + strategy.getManipulatedClassCount() + " classes manipulated, "
+                    + strategy.getReusedClassCount() + " reused), exported packages : " + exportClause);
+            return bundle(out.toURI().toURL().toExternalForm());
+        } catch (MalformedURLException e) {
+            throw new RuntimeException("Cannot compute the url of the manipulated bundle");
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write of the manipulated bundle");
+        }
+    }
+
+    /**
+     * Adds the files from the given directory to the bundle, in a single walk. Classes and packageinfo files are
+     * given to the analyzer.
+     *
+     * @return the number of added resources
+     */
+    private static int addResources(TinyBundle bundle, PackageAnalyzer analyzer, File directory, String prefix)
+            throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
         for (File file : files) {
+            String path = prefix + file.getName();
             if (file.isDirectory()) {
-                // By convention we export of .services and .service package
-                if (file.getAbsolutePath().contains("/services")  || file.getAbsolutePath().contains("/service")) {
-                    String path = file.getAbsolutePath().substring(classes.getAbsolutePath().length() +1);
-                    String packageName = path.replace('/', '.');
-                    exports.add(packageName);
-                }
+                count += addResources(bundle, analyzer, file, path + "/");
             } else {
-                // We need to compute the path
-                String path = file.getAbsolutePath().substring(classes.getAbsolutePath().length() +1);
-                try {
-                    tested.add(path, file.toURI().toURL());
-                } catch (MalformedURLException e) {
-                    // Ignore it.
+                if (path.endsWith(".class") || file.getName().equals("packageinfo")) {
+                    analyzer.analyze(path, FileUtils.readFileToByteArray(file));
                 }
-                System.out.println(file.getName() + " added to " + path);
+                bundle.add(path, file.toURI().toURL());
+                count++;
             }
         }
+        return count;
+    }
 
-        // Added extra imports.
-        exports.addAll(extraExports);
-
-        String clause = "";
-        for (String export : exports) {
-            if (export.length() > 0) { export += ", "; }
-            clause += export;
+    /**
+     * Checks whether the package is a `service` or `services` package, or one of their sub-packages.
+     */
+    static boolean isServicePackage(String pkg) {
+        for (String segment : pkg.split("\\.")) {
+            if (segment.equals("service") || segment.equals("services")) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        System.out.println("Exported packages : " + clause);
+    /**
+     * Computes the stamp of the inputs of the test bundle: the relative path, size and modification date of every
+     * file from the given roots, and the inputs of the headers. The files are not read.
+     *
+     * @param extraExports the extra exported packages
+     * @param roots        the root directories, missing ones are ignored
+     * @return the stamp
+     */
+    static String computeInputStamp(List<String> extraExports, File... roots) {
+        return computeDigest(extraExports, false, roots);
+    }
 
-        InputStream inputStream = tested
-                .set(Constants.BUNDLE_SYMBOLICNAME, BaseTest.TEST_BUNDLE_SYMBOLIC_NAME)
-                .set(Constants.EXPORT_PACKAGE, clause)
-                .build(IPOJOStrategy.withiPOJO(new File("src/main/resources")));
+    /**
+     * Computes the hash of the inputs of the test bundle: the relative path and content of every file from the
+     * given roots, and the inputs of the headers. Files are visited in a deterministic order.
+     *
+     * @param extraExports the extra exported packages
+     * @param roots        the root directories, missing ones are ignored
+     * @return the hash
+     */
+    static String computeInputHash(List<String> extraExports, File... roots) {
+        return computeDigest(extraExports, true, roots);
+    }
 
-        // Setting the import-package to * generates an import clause with * which is invalid. In addition * is not
-        // required as it's the default.
+    private static String computeDigest(List<String> extraExports, boolean content, File... roots) {
+        MessageDigest digest = HashUtils.newDigest();
+        byte[] buffer = new byte[8192];
+        try {
+            for (File root : roots) {
+                digest.update(root.getPath().getBytes("UTF-8"));
+                if (root.isDirectory()) {
+                    updateDigest(digest, root, "", content, buffer);
+                }
+            }
+            for (String export : extraExports) {
+                digest.update(export.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            digest.update(getGeneratorKey().getBytes("UTF-8"));
+        } catch (IOException e) {
+            // The bundle will be rebuilt.
+            return "unknown-" + System.nanoTime();
+        }
+        return HashUtils.toHex(digest.digest());
+    }
 
+    /**
+     * Identifies what the headers are generated from, besides the bundle content: this library (its version and
+     * jar), as it defines how the headers are computed, and the class path giving the versions of the imported
+     * packages. Also used by the {@link BundleFixture}.
+     */
+    static String getGeneratorKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(TestBundleOption.class.getPackage() == null ? null
+                : TestBundleOption.class.getPackage().getImplementationVersion()).append('|');
+        try {
+            File library = new File(TestBundleOption.class.getProtectionDomain().getCodeSource().getLocation()
+                    .toURI());
+            key.append(library.getAbsolutePath()).append('|').append(library.length()).append('|')
+                    .append(library.lastModified()).append('|');
+        } catch (Exception e) {
+            // No code source (or not a file), rely on the version.
+            key.append("unknown|");
+        }
+        key.append(System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")));
+        return key.toString();
+    }
+
+    private static void updateDigest(MessageDigest digest, File directory, String prefix, boolean content,
+                                     byte[] buffer) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String path = prefix + file.getName();
+            digest.update(path.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            if (file.isDirectory()) {
+                updateDigest(digest, file, path + "/", content, buffer);
+            } else if (!content) {
+                digest.update((file.length() + "|" + file.lastModified()).getBytes("UTF-8"));
+                digest.update((byte) 0);
+            } else {
+                InputStream stream = new FileInputStream(file);
+                try {
+                    int read;
+                    while ((read = stream.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        }
+    }
 
+    /**
+     * Reads the stamp and the hash stored next to the bundle.
+     *
+     * @return the stamp and the hash, {@literal null} if not available
+     */
+    private static String[] readHash(File hashFile) {
+        if (!hashFile.isFile()) {
+            return null;
+        }
         try {
-            org.apache.commons.io.FileUtils.copyInputStreamToFile(inputStream, out);
-            return bundle(out.toURI().toURL().toExternalForm());
-        } catch (MalformedURLException e) {
-            throw new RuntimeException("Cannot compute the url of the manipulated bundle");
+            String[] lines = FileUtils.readFileToString(hashFile).trim().split("\\s+");
+            return lines.length == 2 ? lines : null;
         } catch (IOException e) {
-            throw new RuntimeException("Cannot write of the manipulated bundle");
+            return null;
         }
     }
 
-
+    private static void writeHash(File hashFile, String stamp, String hash) throws IOException {
+        FileUtils.writeStringToFile(hashFile, stamp + "\n" + hash + "\n");
+    }
 
 }
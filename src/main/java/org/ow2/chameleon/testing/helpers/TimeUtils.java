@@ -37,4 +37,21 @@ public class TimeUtils {
             // Ignore it.
         }
     }
+
+    /**
+     * Computes the effective timeout of a wait operation.
+     * If timeout is set to 0, it sets the timeout to 10s. The result is multiplied by TIME_FACTOR.
+     * @param timeout the timeout in milliseconds
+     * @return the timeout to apply in milliseconds
+     */
+    public static long timeout(long timeout) {
+        if (timeout == 0) {
+            timeout = 10000; // Default 10 seconds.
+        }
+        if (TIME_FACTOR <= 0) {
+            return timeout;
+        } else {
+            return timeout * TIME_FACTOR;
+        }
+    }
 }
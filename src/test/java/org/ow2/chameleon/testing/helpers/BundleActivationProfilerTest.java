@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleEvent;
+
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BundleActivationProfilerTest {
+
+    private BundleContextStub m_context;
+    private BundleActivationProfiler m_profiler;
+
+    @Before
+    public void setUp() {
+        m_context = new BundleContextStub(new BundleStub());
+        m_profiler = new BundleActivationProfiler(m_context);
+    }
+
+    @Test
+    public void recordActivations() throws InterruptedException {
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(BundleActivationProfiler.IPOJO_COMPONENTS_HEADER, "component { }");
+        BundleStub slow = new BundleStub(1, "slow", headers);
+        BundleStub fast = new BundleStub(2, "fast", null);
+
+        m_profiler.start();
+        m_context.fireBundleEvent(BundleEvent.INSTALLED, slow)
+                .fireBundleEvent(BundleEvent.INSTALLED, fast)
+                .fireBundleEvent(BundleEvent.RESOLVED, slow)
+                .fireBundleEvent(BundleEvent.RESOLVED, fast)
+                .fireBundleEvent(BundleEvent.STARTING, fast)
+                .fireBundleEvent(BundleEvent.STARTED, fast)
+                .fireBundleEvent(BundleEvent.STARTING, slow);
+        Thread.sleep(20);
+        m_context.fireBundleEvent(BundleEvent.STARTED, slow);
+        m_profiler.stop();
+
+        List<BundleActivationProfiler.BundleTimings> timings = m_profiler.getTimings();
+        assertThat(timings).hasSize(2);
+        assertThat(timings.get(0).getSymbolicName()).isEqualTo("slow");
+        assertThat(timings.get(0).isIPOJOBundle()).isTrue();
+        assertThat(timings.get(0).getActivationDuration()).isGreaterThanOrEqualTo(20000000L);
+        assertThat(timings.get(1).getSymbolicName()).isEqualTo("fast");
+        assertThat(timings.get(1).isIPOJOBundle()).isFalse();
+        assertThat(timings.get(1).getInstallationInterval()).isGreaterThanOrEqualTo(0);
+        assertThat(timings.get(1).getResolutionDuration()).isGreaterThanOrEqualTo(0);
+    }
+
+    @Test
+    public void ignoreEventsOfUnprofiledBundles() {
+        BundleStub bundle = new BundleStub(1, "installed.before", null);
+
+        m_profiler.start();
+        m_context.fireBundleEvent(BundleEvent.RESOLVED, bundle)
+                .fireBundleEvent(BundleEvent.STOPPED, bundle)
+                .fireBundleEvent(BundleEvent.UNRESOLVED, bundle)
+                .fireBundleEvent(BundleEvent.UNINSTALLED, bundle);
+        assertThat(m_profiler.getTimings()).isEmpty();
+
+        // Bundles installed before the profiler are profiled from their activation.
+        m_context.fireBundleEvent(BundleEvent.STARTING, bundle)
+                .fireBundleEvent(BundleEvent.STARTED, bundle);
+        m_profiler.stop();
+        assertThat(m_profiler.getTimings()).hasSize(1);
+        assertThat(m_profiler.getTimings().get(0).getInstallationInterval()).isEqualTo(-1);
+        assertThat(m_profiler.getTimings().get(0).getActivationDuration()).isGreaterThanOrEqualTo(0);
+    }
+}
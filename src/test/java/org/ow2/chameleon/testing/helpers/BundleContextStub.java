@@ -26,6 +26,9 @@ public class BundleContextStub implements BundleContext {
     private Map<String, String> m_properties = new HashMap<String, String>();
     List<ServiceRegistrationStub> m_services = new ArrayList<ServiceRegistrationStub>();
     private BundleStub m_bundle;
+    private List<BundleListener> m_bundleListeners = new ArrayList<BundleListener>();
+    private List<ServiceListener> m_serviceListeners = new ArrayList<ServiceListener>();
+    private Map<Long, Bundle> m_bundles = new LinkedHashMap<Long, Bundle>();
 
 
     public BundleContextStub(BundleStub bundle) {
@@ -48,6 +51,11 @@ public class BundleContextStub implements BundleContext {
         return this;
     }
 
+    public BundleContextStub addBundle(Bundle bundle) {
+        m_bundles.put(bundle.getBundleId(), bundle);
+        return this;
+    }
+
     public String getProperty(String s) {
         return m_properties.get(s);
     }
@@ -60,36 +68,67 @@ public class BundleContextStub implements BundleContext {
         throw new UnsupportedOperationException("Stub");
     }
 
+    /**
+     * The content is ignored, the location is used as symbolic name.
+     */
     public Bundle installBundle(String s, InputStream inputStream) throws BundleException {
-        throw new UnsupportedOperationException("Stub");
+        BundleStub bundle = new BundleStub(m_bundles.size() + 1, s, null);
+        while (m_bundles.containsKey(bundle.getBundleId())) {
+            bundle = new BundleStub(bundle.getBundleId() + 1, s, null);
+        }
+        addBundle(bundle);
+        return bundle;
     }
 
     public Bundle getBundle(long l) {
-        throw new UnsupportedOperationException("Stub");
+        return m_bundles.get(l);
     }
 
     public Bundle[] getBundles() {
-        throw new UnsupportedOperationException("Stub");
+        return m_bundles.values().toArray(new Bundle[m_bundles.size()]);
     }
 
+    /**
+     * The filter is ignored, the listener receives all the service events.
+     */
     public void addServiceListener(ServiceListener serviceListener, String s) throws InvalidSyntaxException {
-        throw new UnsupportedOperationException("Stub");
+        addServiceListener(serviceListener);
     }
 
-    public void addServiceListener(ServiceListener serviceListener) {
-        throw new UnsupportedOperationException("Stub");
+    public synchronized void addServiceListener(ServiceListener serviceListener) {
+        m_serviceListeners.add(serviceListener);
     }
 
-    public void removeServiceListener(ServiceListener serviceListener) {
-        throw new UnsupportedOperationException("Stub");
+    public synchronized void removeServiceListener(ServiceListener serviceListener) {
+        m_serviceListeners.remove(serviceListener);
+    }
+
+    public BundleContextStub fireServiceEvent(int type, ServiceReference reference) {
+        ServiceEvent event = new ServiceEvent(type, reference);
+        List<ServiceListener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<ServiceListener>(m_serviceListeners);
+        }
+        for (ServiceListener listener : listeners) {
+            listener.serviceChanged(event);
+        }
+        return this;
     }
 
     public void addBundleListener(BundleListener bundleListener) {
-        throw new UnsupportedOperationException("Stub");
+        m_bundleListeners.add(bundleListener);
     }
 
     public void removeBundleListener(BundleListener bundleListener) {
-        throw new UnsupportedOperationException("Stub");
+        m_bundleListeners.remove(bundleListener);
+    }
+
+    public BundleContextStub fireBundleEvent(int type, Bundle bundle) {
+        BundleEvent event = new BundleEvent(type, bundle);
+        for (BundleListener listener : new ArrayList<BundleListener>(m_bundleListeners)) {
+            listener.bundleChanged(event);
+        }
+        return this;
     }
 
     public void addFrameworkListener(FrameworkListener frameworkListener) {
@@ -109,11 +148,26 @@ public class BundleContextStub implements BundleContext {
     }
 
     public ServiceRegistration registerService(String s, Object o, Dictionary dictionary) {
-        ServiceRegistrationStub reg = new ServiceRegistrationStub(this, s, o);
+        ServiceRegistrationStub reg = dictionary == null ? new ServiceRegistrationStub(this, s, o)
+                : new ServiceRegistrationStub(this, s, o, dictionary);
         m_services.add(reg);
+        fireServiceEvent(ServiceEvent.REGISTERED, reg.getReference());
         return reg;
     }
 
+    /**
+     * @return the registered services of the given interface
+     */
+    public <T> List<T> getServiceObjects(Class<T> itf) {
+        List<T> services = new ArrayList<T>();
+        for (ServiceRegistrationStub reg : new ArrayList<ServiceRegistrationStub>(m_services)) {
+            if (itf.getName().equals(reg.m_interface)) {
+                services.add(itf.cast(reg.m_svcObject));
+            }
+        }
+        return services;
+    }
+
     public ServiceReference[] getServiceReferences(String itf, String filter) throws InvalidSyntaxException {
         List<ServiceReference> refs = new ArrayList<ServiceReference>();
         Filter ldap;
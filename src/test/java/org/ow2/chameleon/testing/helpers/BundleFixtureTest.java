@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BundleFixtureTest {
+
+    private File m_roots;
+
+    @Before
+    public void setUp() throws IOException {
+        m_roots = new File("target/test-fixture-roots");
+        FileUtils.deleteDirectory(m_roots);
+        FileUtils.writeStringToFile(new File(m_roots, "first/org/acme/api/a.txt"), "first");
+        FileUtils.writeStringToFile(new File(m_roots, "first/org/acme/impl/b.txt"), "impl");
+        FileUtils.writeStringToFile(new File(m_roots, "second/org/acme/api/a.txt"), "second");
+        FileUtils.writeStringToFile(new File(m_roots, "second/org/acme/api/c.txt"), "c");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(m_roots);
+    }
+
+    @Test
+    public void buildOnlyWhenChanged() throws IOException {
+        BundleFixture.BundleDefinition definition = BundleFixture.fixture()
+                .bundle("fixture-test")
+                .from(new File(m_roots, "first"), new File(m_roots, "second"))
+                .packages("org.acme.api");
+        File jar = new File(BundleFixture.FIXTURE_PATH, "fixture-test.jar");
+        jar.delete();
+
+        assertThat(definition.buildIfChanged(Collections.<String, String>emptyMap())).isTrue();
+        JarFile file = new JarFile(jar);
+        try {
+            List<String> entries = new ArrayList<String>();
+            for (JarEntry entry : Collections.list(file.entries())) {
+                entries.add(entry.getName());
+            }
+            assertThat(entries).contains("org/acme/api/a.txt", "org/acme/api/c.txt").excludes("org/acme/impl/b.txt");
+            // The first directory wins.
+            JarEntry entry = file.getJarEntry("org/acme/api/a.txt");
+            assertThat(IOUtils.toString(file.getInputStream(entry), "UTF-8")).isEqualTo("first");
+        } finally {
+            file.close();
+        }
+
+        assertThat(definition.buildIfChanged(Collections.<String, String>emptyMap())).isFalse();
+
+        FileUtils.writeStringToFile(new File(m_roots, "second/org/acme/api/c.txt"), "changed");
+        assertThat(definition.buildIfChanged(Collections.<String, String>emptyMap())).isTrue();
+    }
+
+    @Test
+    public void buildWhenTheClassPathChanges() throws IOException {
+        BundleFixture.BundleDefinition definition = BundleFixture.fixture()
+                .bundle("fixture-test")
+                .from(new File(m_roots, "first"))
+                .packages("org.acme.api");
+        definition.buildIfChanged(Collections.<String, String>emptyMap());
+        assertThat(definition.buildIfChanged(Collections.<String, String>emptyMap())).isFalse();
+
+        // The imported versions come from the class path.
+        String previous = System.getProperty("surefire.test.class.path");
+        System.setProperty("surefire.test.class.path", "changed.jar");
+        try {
+            assertThat(definition.buildIfChanged(Collections.<String, String>emptyMap())).isTrue();
+        } finally {
+            if (previous == null) {
+                System.clearProperty("surefire.test.class.path");
+            } else {
+                System.setProperty("surefire.test.class.path", previous);
+            }
+        }
+    }
+}
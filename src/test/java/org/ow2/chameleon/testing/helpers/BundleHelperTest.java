@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BundleHelperTest {
+
+    private static final byte[] CONTENT = "content".getBytes();
+    private static final byte[] CHANGED_CONTENT = "changed content".getBytes();
+
+    private SystemBundleStub m_system;
+    private BundleContextStub m_context;
+    private BundleHelper m_helper;
+
+    @Before
+    public void setUp() {
+        m_system = new SystemBundleStub();
+        m_context = new BundleContextStub(new BundleStub());
+        m_context.addBundle(m_system);
+        m_helper = new BundleHelper(m_context);
+    }
+
+    @After
+    public void tearDown() {
+        m_helper.dispose();
+    }
+
+    @Test
+    public void doNotUpdateWhenTheContentIsUnchanged() {
+        BundleStub bundle = (BundleStub) m_helper.install("bundle", CONTENT);
+
+        BundleHelper.UpdateReport report = m_helper.updateIfChanged(bundle, CONTENT.clone(), 1000);
+
+        assertThat(report.isUpdated()).isFalse();
+        assertThat(report.getRefreshedBundles()).isEmpty();
+        assertThat(bundle.getUpdateCount()).isEqualTo(0);
+        assertThat(m_system.getRefreshes()).isEmpty();
+    }
+
+    @Test
+    public void updateAndRefreshTheDependencyClosure() {
+        BundleStub bundle = (BundleStub) m_helper.install("bundle", CONTENT);
+        Bundle dependent = m_helper.install("dependent", CONTENT);
+        Bundle transitive = m_helper.install("transitive", CONTENT);
+        Bundle unrelated = m_helper.install("unrelated", CONTENT);
+        m_system.addDependent(bundle, dependent).addDependent(dependent, transitive)
+                .addDependent(unrelated, bundle);
+
+        BundleHelper.UpdateReport report = m_helper.updateIfChanged(bundle, CHANGED_CONTENT, 1000);
+
+        assertThat(report.isUpdated()).isTrue();
+        assertThat(bundle.getUpdateCount()).isEqualTo(1);
+        assertThat(report.getRefreshedBundles()).containsOnly(bundle, dependent, transitive);
+        assertThat(m_system.getRefreshes()).hasSize(1);
+        assertThat(m_system.getRefreshes().get(0)).containsOnly(bundle);
+        assertThat(report.getRecoveryTime()).isGreaterThanOrEqualTo(0);
+
+        // The new hash is recorded.
+        assertThat(m_helper.updateIfChanged(bundle, CHANGED_CONTENT, 1000).isUpdated()).isFalse();
+        assertThat(bundle.getUpdateCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void updateWhenTheHashIsUnknown() {
+        BundleStub bundle = new BundleStub(42, "bundle", null);
+        m_context.addBundle(bundle);
+
+        BundleHelper.UpdateReport report = m_helper.updateIfChanged(bundle, CONTENT, 1000);
+
+        assertThat(report.isUpdated()).isTrue();
+        assertThat(bundle.getUpdateCount()).isEqualTo(1);
+        assertThat(report.getRefreshedBundles()).containsOnly(bundle);
+        assertThat(m_system.getRefreshes()).containsOnly(Collections.<Bundle>singletonList(bundle));
+
+        assertThat(m_helper.updateIfChanged(bundle, CONTENT, 1000).isUpdated()).isFalse();
+    }
+}
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,20 @@ import java.util.Map;
 public class BundleStub implements Bundle {
 
     private BundleContext m_bundleContext;
+    private final long m_id;
+    private final String m_symbolicName;
+    private final Dictionary m_headers;
+    private int m_updates;
+
+    public BundleStub() {
+        this(0, null, null);
+    }
+
+    public BundleStub(long id, String symbolicName, Dictionary headers) {
+        m_id = id;
+        m_symbolicName = symbolicName;
+        m_headers = headers;
+    }
 
     public void setBundleContext(BundleContext bc) {
         m_bundleContext = bc;
@@ -59,7 +74,11 @@ public class BundleStub implements Bundle {
     }
 
     public void update(InputStream inputStream) throws BundleException {
+        m_updates++;
+    }
 
+    public int getUpdateCount() {
+        return m_updates;
     }
 
     public void uninstall() throws BundleException {
@@ -67,7 +86,7 @@ public class BundleStub implements Bundle {
     }
 
     public Dictionary getHeaders() {
-        return null;
+        return m_headers == null ? new Hashtable() : m_headers;
     }
 
     public BundleContext getBundleContext() {
@@ -83,7 +102,7 @@ public class BundleStub implements Bundle {
     }
 
     public <A> A adapt(Class<A> type) {
-        return (A) this;
+        return type.isInstance(this) ? (A) this : null;
     }
 
     public File getDataFile(String filename) {
@@ -91,7 +110,7 @@ public class BundleStub implements Bundle {
     }
 
     public long getBundleId() {
-        return 0;
+        return m_id;
     }
 
     public String getLocation() {
@@ -119,7 +138,7 @@ public class BundleStub implements Bundle {
     }
 
     public String getSymbolicName() {
-        return null;
+        return m_symbolicName;
     }
 
     public Class loadClass(String s) throws ClassNotFoundException {
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ChameleonOptionTest {
+
+    @Test
+    public void compareVersions() {
+        assertThat(ChameleonOption.compareVersions("1.0.10", "1.0.9")).isGreaterThan(0);
+        assertThat(ChameleonOption.compareVersions("1.7.5", "1.7.5")).isEqualTo(0);
+        assertThat(ChameleonOption.compareVersions("1.0", "1.0.1")).isLessThan(0);
+        assertThat(ChameleonOption.compareVersions("1.0", "1.0-SNAPSHOT")).isGreaterThan(0);
+        assertThat(ChameleonOption.compareVersions("1.0-SNAPSHOT", "0.9")).isGreaterThan(0);
+        assertThat(ChameleonOption.compareVersions("2.0.0-beta", "2.0.0-alpha")).isGreaterThan(0);
+    }
+}
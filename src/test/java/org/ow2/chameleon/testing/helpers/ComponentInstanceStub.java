@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.felix.ipojo.ComponentFactory;
+import org.apache.felix.ipojo.ComponentInstance;
+import org.apache.felix.ipojo.InstanceStateListener;
+import org.apache.felix.ipojo.architecture.InstanceDescription;
+import org.osgi.framework.BundleContext;
+
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ComponentInstanceStub implements ComponentInstance {
+
+    private final String m_name;
+    private final List<InstanceStateListener> m_listeners = new CopyOnWriteArrayList<InstanceStateListener>();
+    private volatile int m_state;
+
+    public ComponentInstanceStub(String name, int state) {
+        m_name = name;
+        m_state = state;
+    }
+
+    public void setState(int state) {
+        m_state = state;
+        for (InstanceStateListener listener : m_listeners) {
+            listener.stateChanged(this, state);
+        }
+    }
+
+    public void start() {
+        setState(VALID);
+    }
+
+    public void stop() {
+        setState(STOPPED);
+    }
+
+    public void dispose() {
+        setState(DISPOSED);
+    }
+
+    public int getState() {
+        return m_state;
+    }
+
+    public InstanceDescription getInstanceDescription() {
+        return null;
+    }
+
+    public ComponentFactory getFactory() {
+        return null;
+    }
+
+    public BundleContext getContext() {
+        return null;
+    }
+
+    public String getInstanceName() {
+        return m_name;
+    }
+
+    public boolean isStarted() {
+        return m_state > STOPPED;
+    }
+
+    public void reconfigure(Dictionary configuration) {
+
+    }
+
+    public void addInstanceStateListener(InstanceStateListener listener) {
+        m_listeners.add(listener);
+    }
+
+    public void removeInstanceStateListener(InstanceStateListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    public List<InstanceStateListener> getListeners() {
+        return m_listeners;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ConfigAdminHelperTest {
+
+    private BundleContextStub m_context;
+    private ConfigurationAdminStub m_admin;
+    private ConfigAdminHelper m_helper;
+
+    @Before
+    public void setUp() {
+        m_context = new BundleContextStub(new BundleStub());
+        m_admin = new ConfigurationAdminStub(m_context);
+        m_helper = new ConfigAdminHelper(m_context);
+    }
+
+    @After
+    public void tearDown() {
+        m_helper.dispose();
+    }
+
+    private static Dictionary<String, Object> properties(String key, Object value) {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(key, value);
+        return properties;
+    }
+
+    private ConfigurationStub configure(String pid, String key, Object value) throws IOException {
+        Configuration configuration = m_admin.getConfiguration(pid);
+        configuration.update(properties(key, value));
+        return (ConfigurationStub) configuration;
+    }
+
+    private List<Configuration> getFactoryConfigurations(String factoryPid) throws Exception {
+        List<Configuration> configurations = new ArrayList<Configuration>();
+        for (Configuration configuration : m_admin.listConfigurations(null)) {
+            if (factoryPid.equals(configuration.getFactoryPid())) {
+                configurations.add(configuration);
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * Runs the action and returns what it has printed.
+     */
+    private static String captureOutput(Runnable action) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString();
+    }
+
+    @Test
+    public void deleteAllConfigurations() throws Exception {
+        assertThat(m_helper.deleteAllConfigurations(100)).isTrue();
+
+        configure("a", "a", 1);
+        m_admin.createFactoryConfiguration("factory").update(properties("b", 1));
+        assertThat(m_helper.deleteAllConfigurations(100)).isTrue();
+        assertThat(m_admin.listConfigurations(null)).isNull();
+    }
+
+    @Test
+    public void reportTheConfigurationsNotDeleted() throws Exception {
+        configure("a", "a", 1);
+        configure("b", "b", 1);
+        m_admin.failOn("b");
+
+        String output = captureOutput(new Runnable() {
+            public void run() {
+                // The failed deletion is not awaited.
+                assertThat(m_helper.deleteAllConfigurations(100)).isTrue();
+            }
+        });
+        assertThat(output).contains("1 configurations deleted").contains("cannot delete [b]");
+        assertThat(m_admin.get("a")).isNull();
+    }
+
+    @Test
+    public void deletionNotDispatched() throws Exception {
+        configure("a", "a", 1);
+        m_admin.setDispatching(false);
+
+        assertThat(m_helper.deleteAllConfigurations(100)).isFalse();
+        assertThat(m_admin.get("a")).isNull();
+    }
+
+    /**
+     * Publishes the PID of the updated configurations in the properties of a service, as iPOJO instances do.
+     */
+    private static ConfigurationListener publisher(final ServiceRegistration registration) {
+        return new ConfigurationListener() {
+            public void configurationEvent(ConfigurationEvent event) {
+                if (event.getType() == ConfigurationEvent.CM_UPDATED) {
+                    registration.setProperties(properties(Constants.SERVICE_PID, event.getPid()));
+                }
+            }
+        };
+    }
+
+    @Test
+    public void updateAndWaitForTheServiceProperties() throws Exception {
+        Configuration configuration = configure("a", "a", 1);
+        ServiceRegistration registration = m_context.registerService("org.acme.Service", new Object(),
+                properties(Constants.SERVICE_PID, "other"));
+        m_admin.addConsumer(publisher(registration));
+
+        assertThat(m_helper.updateAndWait(configuration, properties("a", 2), 1000)).isGreaterThanOrEqualTo(0);
+        assertThat(registration.getReference().getProperty(Constants.SERVICE_PID)).isEqualTo("a");
+    }
+
+    @Test
+    public void updateAndWaitForModificationAfterUpdate() throws Exception {
+        Configuration configuration = configure("a", "a", 1);
+        ServiceRegistration registration = m_context.registerService("org.acme.Service", new Object(), null);
+        m_admin.addConsumer(publisher(registration));
+
+        m_helper.updateAndWait(configuration, properties("a", 2),
+                ConfigAdminHelper.AppliedSignal.UPDATED_THEN_MODIFIED, 1000);
+        assertThat(registration.getReference().getProperty(Constants.SERVICE_PID)).isEqualTo("a");
+    }
+
+    @Test(expected = AssertionError.class)
+    public void ignoreModificationBeforeUpdate() throws Exception {
+        Configuration configuration = configure("a", "a", 1);
+        ServiceRegistration registration = m_context.registerService("org.acme.Service", new Object(), null);
+        // Registered before the listener of the helper, so the service is modified before CM_UPDATED is received.
+        m_context.registerService(ConfigurationListener.class.getName(), publisher(registration), null);
+
+        m_helper.updateAndWait(configuration, properties("a", 2),
+                ConfigAdminHelper.AppliedSignal.UPDATED_THEN_MODIFIED, 100);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void ignoreServicesOfOtherConfigurations() throws Exception {
+        Configuration configuration = configure("a", "a", 1);
+        final ServiceRegistration registration = m_context.registerService("org.acme.Service", new Object(), null);
+        m_admin.addConsumer(new ConfigurationListener() {
+            public void configurationEvent(ConfigurationEvent event) {
+                registration.setProperties(properties(Constants.SERVICE_PID, "other"));
+            }
+        });
+
+        m_helper.updateAndWait(configuration, properties("a", 2), 100);
+    }
+
+    @Test
+    public void updateAndWaitForCondition() throws Exception {
+        Configuration configuration = configure("a", "a", 1);
+
+        m_helper.updateAndWait(configuration, properties("a", 2), new ConfigAdminHelper.AppliedCondition() {
+            public boolean isApplied(Configuration configuration) {
+                return Integer.valueOf(2).equals(configuration.getProperties().get("a"));
+            }
+        }, 100);
+    }
+
+    /**
+     * Registers a service for each updated factory configuration, as iPOJO factories do.
+     */
+    private void registerServicesOfFactoryConfigurations() {
+        m_admin.addConsumer(new ConfigurationListener() {
+            public void configurationEvent(ConfigurationEvent event) {
+                if (event.getType() == ConfigurationEvent.CM_UPDATED && event.getFactoryPid() != null) {
+                    m_context.registerService("org.acme.Service", new Object(),
+                            properties("instance.name", event.getPid()));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void createFactoryConfigurations() throws Exception {
+        registerServicesOfFactoryConfigurations();
+
+        ConfigAdminHelper.BulkCreationReport report = m_helper.createFactoryConfigurations("factory", 3,
+                new ConfigAdminHelper.PropertiesGenerator() {
+                    public Dictionary generate(int index) {
+                        return properties("index", index);
+                    }
+                }, 1000);
+
+        assertThat(report.getConfigurations()).hasSize(3);
+        assertThat(report.getConfigurations().get(2).getProperties().get("index")).isEqualTo(2);
+        assertThat(report.getLatencies().getCount()).isEqualTo(3);
+        assertThat(report.getTotalDuration()).isGreaterThanOrEqualTo(report.getSubmissionDuration());
+        assertThat(getFactoryConfigurations("factory")).hasSize(3);
+    }
+
+    @Test
+    public void createFactoryConfigurationsFromTemplate() throws Exception {
+        registerServicesOfFactoryConfigurations();
+
+        ConfigAdminHelper.BulkCreationReport report = m_helper.createFactoryConfigurations("factory", 2,
+                properties("a", 1), 1000);
+
+        assertThat(report.getConfigurations()).hasSize(2);
+        assertThat(report.getConfigurations().get(0).getPid()).isNotEqualTo(report.getConfigurations().get(1)
+                .getPid());
+        assertThat(report.getConfigurations().get(1).getProperties().get("a")).isEqualTo(1);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void failWhenFactoryConfigurationsAreNotApplied() {
+        m_helper.createFactoryConfigurations("factory", 2, properties("a", 1), 100);
+    }
+
+    @Test
+    public void restoreTheDifference() throws Exception {
+        ConfigurationStub unchanged = configure("unchanged", "a", 1);
+        ConfigurationStub array = configure("array", "values", new int[] {1, 2});
+        configure("changed", "b", 1);
+        configure("changed-array", "values", new int[] {1, 2});
+        configure("missing", "c", 1);
+        Configuration factory = m_admin.createFactoryConfiguration("factory");
+        factory.update(properties("d", 1));
+        String factoryConfigurationPid = factory.getPid();
+
+        ConfigAdminHelper.ConfigurationSnapshot snapshot = m_helper.snapshot();
+        assertThat(snapshot.getPids()).containsOnly("unchanged", "array", "changed", "changed-array", "missing",
+                factoryConfigurationPid);
+
+        // Same content, but another array.
+        array.update(properties("values", new int[] {1, 2}));
+        configure("changed", "b", 2);
+        configure("changed-array", "values", new int[] {1, 3});
+        m_admin.getConfiguration("missing").delete();
+        factory.delete();
+        configure("new", "e", 1);
+        int arrayUpdates = array.getUpdateCount();
+        int unchangedUpdates = unchanged.getUpdateCount();
+
+        assertThat(m_helper.restore(snapshot)).isTrue();
+
+        assertThat(m_admin.get("new")).isNull();
+        assertThat(m_admin.get("changed").getProperties().get("b")).isEqualTo(1);
+        assertThat((int[]) m_admin.get("changed-array").getProperties().get("values")).isEqualTo(new int[] {1, 2});
+        assertThat(m_admin.get("missing").getProperties().get("c")).isEqualTo(1);
+        // Not touched.
+        assertThat(array.getUpdateCount()).isEqualTo(arrayUpdates);
+        assertThat(unchanged.getUpdateCount()).isEqualTo(unchangedUpdates);
+        // Recreated factory configurations get a new PID.
+        List<Configuration> factoryConfigurations = getFactoryConfigurations("factory");
+        assertThat(factoryConfigurations).hasSize(1);
+        assertThat(factoryConfigurations.get(0).getPid()).isNotEqualTo(factoryConfigurationPid);
+        assertThat(factoryConfigurations.get(0).getProperties().get("d")).isEqualTo(1);
+    }
+
+    @Test
+    public void reportTheConfigurationsNotRestored() throws Exception {
+        configure("a", "a", 1);
+        configure("b", "b", 1);
+        final ConfigAdminHelper.ConfigurationSnapshot snapshot = m_helper.snapshot();
+        m_admin.getConfiguration("a").delete();
+        m_admin.getConfiguration("b").delete();
+        m_admin.failOn("b");
+
+        String output = captureOutput(new Runnable() {
+            public void run() {
+                assertThat(m_helper.restore(snapshot)).isTrue();
+            }
+        });
+        assertThat(output).contains("1 recreated").contains("cannot restore [b]");
+        assertThat(m_admin.get("a").getProperties().get("a")).isEqualTo(1);
+    }
+
+    @Test
+    public void restoreNotDispatched() throws Exception {
+        configure("a", "a", 1);
+        ConfigAdminHelper.ConfigurationSnapshot snapshot = m_helper.snapshot();
+        configure("a", "a", 2);
+        m_admin.setDispatching(false);
+
+        assertThat(m_helper.restore(snapshot, 100)).isFalse();
+        assertThat(m_admin.get("a").getProperties().get("a")).isEqualTo(1);
+    }
+}
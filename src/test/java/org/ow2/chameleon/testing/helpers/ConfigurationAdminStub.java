@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Configuration Admin keeping the configurations in memory. The events are delivered synchronously to the
+ * {@link ConfigurationListener} services registered in the bundle context, and then to the consumers.
+ */
+public class ConfigurationAdminStub implements ConfigurationAdmin {
+
+    private final BundleContextStub m_context;
+    private final Map<String, ConfigurationStub> m_configurations = new LinkedHashMap<String, ConfigurationStub>();
+    private final Set<String> m_failing = new HashSet<String>();
+    private final List<ConfigurationListener> m_consumers = new ArrayList<ConfigurationListener>();
+    private boolean m_dispatching = true;
+    private int m_factoryCount;
+
+    public ConfigurationAdminStub(BundleContextStub context) {
+        m_context = context;
+        context.addService(ConfigurationAdmin.class.getName(), this);
+    }
+
+    /**
+     * Makes the updates and deletions of the configuration fail.
+     */
+    public ConfigurationAdminStub failOn(String pid) {
+        m_failing.add(pid);
+        return this;
+    }
+
+    /**
+     * Enables or disables the dispatch of the configuration events.
+     */
+    public ConfigurationAdminStub setDispatching(boolean dispatching) {
+        m_dispatching = dispatching;
+        return this;
+    }
+
+    /**
+     * Adds a consumer, notified of the events after the listeners, as a managed service applying the
+     * configurations.
+     */
+    public ConfigurationAdminStub addConsumer(ConfigurationListener consumer) {
+        m_consumers.add(consumer);
+        return this;
+    }
+
+    public ConfigurationStub get(String pid) {
+        return m_configurations.get(pid);
+    }
+
+    public Configuration createFactoryConfiguration(String factoryPid) throws IOException {
+        return createFactoryConfiguration(factoryPid, null);
+    }
+
+    public synchronized Configuration createFactoryConfiguration(String factoryPid, String location)
+            throws IOException {
+        ConfigurationStub configuration = new ConfigurationStub(this, factoryPid + "." + m_factoryCount++,
+                factoryPid);
+        m_configurations.put(configuration.getPid(), configuration);
+        return configuration;
+    }
+
+    public Configuration getConfiguration(String pid, String location) throws IOException {
+        return getConfiguration(pid);
+    }
+
+    public synchronized Configuration getConfiguration(String pid) throws IOException {
+        ConfigurationStub configuration = m_configurations.get(pid);
+        if (configuration == null) {
+            configuration = new ConfigurationStub(this, pid, null);
+            m_configurations.put(pid, configuration);
+        }
+        return configuration;
+    }
+
+    /**
+     * The filter is ignored. As with a real Configuration Admin, the configurations without properties are not
+     * listed.
+     */
+    public synchronized Configuration[] listConfigurations(String filter) throws IOException {
+        List<Configuration> configurations = new ArrayList<Configuration>();
+        for (ConfigurationStub configuration : m_configurations.values()) {
+            if (configuration.getProperties() != null) {
+                configurations.add(configuration);
+            }
+        }
+        return configurations.isEmpty() ? null : configurations.toArray(new Configuration[configurations.size()]);
+    }
+
+    void checkFailing(String pid) throws IOException {
+        if (m_failing.contains(pid)) {
+            throw new IOException("Cannot change " + pid);
+        }
+    }
+
+    void updated(ConfigurationStub configuration) {
+        fire(ConfigurationEvent.CM_UPDATED, configuration);
+    }
+
+    void deleted(ConfigurationStub configuration) {
+        synchronized (this) {
+            m_configurations.remove(configuration.getPid());
+        }
+        fire(ConfigurationEvent.CM_DELETED, configuration);
+    }
+
+    private void fire(int type, ConfigurationStub configuration) {
+        if (!m_dispatching) {
+            return;
+        }
+        ServiceReference reference = m_context.getServiceReference(ConfigurationAdmin.class.getName());
+        ConfigurationEvent event = new ConfigurationEvent(reference, type, configuration.getFactoryPid(),
+                configuration.getPid());
+        for (ConfigurationListener listener : m_context.getServiceObjects(ConfigurationListener.class)) {
+            listener.configurationEvent(event);
+        }
+        for (ConfigurationListener consumer : new ArrayList<ConfigurationListener>(m_consumers)) {
+            consumer.configurationEvent(event);
+        }
+    }
+}
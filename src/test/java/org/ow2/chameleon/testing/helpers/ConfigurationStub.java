@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * A configuration of the {@link ConfigurationAdminStub}.
+ */
+public class ConfigurationStub implements Configuration {
+
+    private final ConfigurationAdminStub m_admin;
+    private final String m_pid;
+    private final String m_factoryPid;
+    private Hashtable<String, Object> m_properties;
+    private String m_location;
+    private boolean m_deleted;
+    private int m_updates;
+
+    ConfigurationStub(ConfigurationAdminStub admin, String pid, String factoryPid) {
+        m_admin = admin;
+        m_pid = pid;
+        m_factoryPid = factoryPid;
+    }
+
+    public String getPid() {
+        checkDeleted();
+        return m_pid;
+    }
+
+    public String getFactoryPid() {
+        checkDeleted();
+        return m_factoryPid;
+    }
+
+    /**
+     * @return a copy of the properties, with the properties set by the Configuration Admin
+     */
+    public synchronized Dictionary getProperties() {
+        checkDeleted();
+        return m_properties == null ? null : new Hashtable<String, Object>(m_properties);
+    }
+
+    public void update(Dictionary properties) throws IOException {
+        synchronized (this) {
+            checkDeleted();
+            m_admin.checkFailing(m_pid);
+            Hashtable<String, Object> copy = new Hashtable<String, Object>();
+            for (Enumeration keys = properties.keys(); keys.hasMoreElements(); ) {
+                String key = (String) keys.nextElement();
+                copy.put(key, properties.get(key));
+            }
+            copy.put(Constants.SERVICE_PID, m_pid);
+            if (m_factoryPid != null) {
+                copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, m_factoryPid);
+            }
+            m_properties = copy;
+            m_updates++;
+        }
+        m_admin.updated(this);
+    }
+
+    public void update() throws IOException {
+        checkDeleted();
+        m_admin.checkFailing(m_pid);
+        m_admin.updated(this);
+    }
+
+    public void delete() throws IOException {
+        checkDeleted();
+        m_admin.checkFailing(m_pid);
+        m_admin.deleted(this);
+        m_deleted = true;
+    }
+
+    public void setBundleLocation(String location) {
+        m_location = location;
+    }
+
+    public String getBundleLocation() {
+        return m_location;
+    }
+
+    /**
+     * @return the number of updates with new properties
+     */
+    public synchronized int getUpdateCount() {
+        return m_updates;
+    }
+
+    private void checkDeleted() {
+        if (m_deleted) {
+            throw new IllegalStateException("Configuration " + m_pid + " deleted");
+        }
+    }
+}
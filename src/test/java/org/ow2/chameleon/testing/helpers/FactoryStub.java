@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.felix.ipojo.ComponentInstance;
+import org.apache.felix.ipojo.Factory;
+import org.apache.felix.ipojo.FactoryStateListener;
+import org.apache.felix.ipojo.ServiceContext;
+import org.apache.felix.ipojo.architecture.ComponentTypeDescription;
+import org.apache.felix.ipojo.metadata.Element;
+import org.osgi.framework.BundleContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+
+public class FactoryStub implements Factory {
+
+    private final String m_name;
+    private final int m_instanceState;
+    private final List<ComponentInstanceStub> m_instances = new ArrayList<ComponentInstanceStub>();
+
+    /**
+     * @param name          the factory name
+     * @param instanceState the state of the created instances
+     */
+    public FactoryStub(String name, int instanceState) {
+        m_name = name;
+        m_instanceState = instanceState;
+    }
+
+    public synchronized ComponentInstance createComponentInstance(Dictionary configuration) {
+        Object name = configuration == null ? null : configuration.get(INSTANCE_NAME_PROPERTY);
+        ComponentInstanceStub instance = new ComponentInstanceStub(
+                name == null ? m_name + "-" + m_instances.size() : name.toString(), m_instanceState);
+        m_instances.add(instance);
+        return instance;
+    }
+
+    public ComponentInstance createComponentInstance(Dictionary configuration, ServiceContext serviceContext) {
+        return createComponentInstance(configuration);
+    }
+
+    public Element getDescription() {
+        return null;
+    }
+
+    public ComponentTypeDescription getComponentDescription() {
+        return null;
+    }
+
+    public boolean isAcceptable(Dictionary configuration) {
+        return true;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public void reconfigure(Dictionary configuration) {
+
+    }
+
+    public void addFactoryStateListener(FactoryStateListener listener) {
+
+    }
+
+    public void removeFactoryStateListener(FactoryStateListener listener) {
+
+    }
+
+    public List getMissingHandlers() {
+        return Collections.emptyList();
+    }
+
+    public List getRequiredHandlers() {
+        return Collections.emptyList();
+    }
+
+    public String getClassName() {
+        return null;
+    }
+
+    public int getState() {
+        return VALID;
+    }
+
+    public BundleContext getBundleContext() {
+        return null;
+    }
+
+    public String getVersion() {
+        return null;
+    }
+
+    public Element getComponentMetadata() {
+        return null;
+    }
+
+    public synchronized List<ComponentInstance> getInstances() {
+        return new ArrayList<ComponentInstance>(m_instances);
+    }
+
+    public synchronized List<ComponentInstanceStub> getStubs() {
+        return new ArrayList<ComponentInstanceStub>(m_instances);
+    }
+
+    public synchronized List<String> getInstancesNames() {
+        List<String> names = new ArrayList<String>();
+        for (ComponentInstance instance : m_instances) {
+            names.add(instance.getInstanceName());
+        }
+        return names;
+    }
+}
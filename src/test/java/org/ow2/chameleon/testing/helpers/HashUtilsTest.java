@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class HashUtilsTest {
+
+    @Test
+    public void sha1OfBuffer() throws Exception {
+        byte[] content = "hello".getBytes("UTF-8");
+        assertThat(HashUtils.sha1(content)).isEqualTo("aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(content.length + 2);
+        direct.put((byte) 0).put(content).put((byte) 0);
+        direct.position(1).limit(1 + content.length);
+        assertThat(HashUtils.sha1(direct)).isEqualTo(HashUtils.sha1(content));
+        assertThat(direct.position()).isEqualTo(1);
+        assertThat(HashUtils.sha1(ByteBuffer.wrap(content))).isEqualTo(HashUtils.sha1(content));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class InMemoryBundleTest {
+
+    @Test
+    public void build() throws IOException {
+        byte[] content = InMemoryBundle.bundle("test.memory")
+                .set(Constants.BUNDLE_VERSION, "1.0.0")
+                .add("hello.txt", "hello".getBytes("UTF-8"))
+                .add(InMemoryBundleTest.class)
+                .build();
+
+        JarInputStream jar = new JarInputStream(new ByteArrayInputStream(content));
+        Manifest manifest = jar.getManifest();
+        assertThat(manifest.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME)).isEqualTo("test.memory");
+        assertThat(manifest.getMainAttributes().getValue(Constants.BUNDLE_VERSION)).isEqualTo("1.0.0");
+        assertThat(manifest.getMainAttributes().getValue(Constants.BUNDLE_MANIFESTVERSION)).isEqualTo("2");
+
+        List<String> entries = new ArrayList<String>();
+        JarEntry entry;
+        while ((entry = jar.getNextJarEntry()) != null) {
+            entries.add(entry.getName());
+        }
+        jar.close();
+        assertThat(entries).containsOnly("hello.txt", "org/ow2/chameleon/testing/helpers/InMemoryBundleTest.class");
+    }
+
+    @Test
+    public void variants() throws IOException {
+        InMemoryBundle template = InMemoryBundle.bundle("synthetic").add("a.txt", new byte[] {1, 2, 3});
+        assertThat(template.getLocation()).isEqualTo("memory:synthetic");
+
+        template.set(Constants.BUNDLE_SYMBOLICNAME, "synthetic-1").set(Constants.BUNDLE_VERSION, "2.0.0");
+        assertThat(template.getLocation()).isEqualTo("memory:synthetic-1/2.0.0");
+
+        JarInputStream jar = new JarInputStream(new ByteArrayInputStream(template.build()));
+        assertThat(jar.getManifest().getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME))
+                .isEqualTo("synthetic-1");
+        jar.close();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IncrementalIPOJOStrategyTest {
+
+    private static byte[] bytes(String value) throws UnsupportedEncodingException {
+        return value.getBytes("UTF-8");
+    }
+
+    @Test
+    public void annotationCandidates() throws UnsupportedEncodingException {
+        assertThat(IncrementalIPOJOStrategy.mayBeAnnotated(bytes("Lorg/apache/felix/ipojo/annotations/Component;")))
+                .isTrue();
+        // Same rule as the manipulator for the custom annotations.
+        assertThat(IncrementalIPOJOStrategy.mayBeAnnotated(bytes("Lorg/acme/iPOJOExtension;"))).isTrue();
+        assertThat(IncrementalIPOJOStrategy.mayBeAnnotated(bytes("Lorg/acme/TemporalHandler;"))).isTrue();
+        assertThat(IncrementalIPOJOStrategy.mayBeAnnotated(bytes("Lorg/acme/Plain;"))).isFalse();
+    }
+}
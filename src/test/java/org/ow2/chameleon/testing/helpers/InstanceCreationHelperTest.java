@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.felix.ipojo.ComponentInstance;
+import org.apache.felix.ipojo.Factory;
+import org.apache.felix.ipojo.InstanceStateListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class InstanceCreationHelperTest {
+
+    private FactoryStub m_factory;
+    private InstanceCreationHelper m_helper;
+
+    @Before
+    public void setUp() {
+        m_factory = new FactoryStub("factory", ComponentInstance.VALID);
+        m_helper = createHelper(m_factory);
+    }
+
+    @After
+    public void tearDown() {
+        m_helper.dispose();
+    }
+
+    private InstanceCreationHelper createHelper(final Factory factory) {
+        BundleContextStub context = new BundleContextStub(new BundleStub());
+        FactoryHelper factoryHelper = new FactoryHelper(context, new OSGiHelper(context), null) {
+            @Override
+            public Factory waitForValidFactory(String factoryName, long timeout) {
+                return factory;
+            }
+        };
+        return new InstanceCreationHelper(context, factoryHelper);
+    }
+
+    private List<Dictionary<String, String>> configurations(String... names) {
+        List<Dictionary<String, String>> configurations = new ArrayList<Dictionary<String, String>>();
+        for (String name : names) {
+            Dictionary<String, String> configuration = new Hashtable<String, String>();
+            configuration.put(Factory.INSTANCE_NAME_PROPERTY, name);
+            configurations.add(configuration);
+        }
+        return configurations;
+    }
+
+    @Test
+    public void createValidInstances() {
+        InstanceCreationHelper.InstanceCreationReport report =
+                m_helper.createComponentInstances("factory", configurations("a", "b", "c"));
+
+        assertThat(report.getInstances()).hasSize(3);
+        assertThat(report.getInstances().get(0).getInstanceName()).isEqualTo("a");
+        assertThat(report.getInstances().get(2).getInstanceName()).isEqualTo("c");
+        assertThat(report.getLatencies().getCount()).isEqualTo(3);
+        assertThat(report.getTotalDuration()).isGreaterThanOrEqualTo(report.getCreationDuration());
+        assertThat(report.getThroughput()).isGreaterThan(0);
+        assertThat(m_helper.getInstanceByName("b")).isSameAs(report.getInstances().get(1));
+        // The validity listener is detached.
+        for (ComponentInstanceStub instance : m_factory.getStubs()) {
+            assertThat(instance.getListeners()).isEmpty();
+        }
+    }
+
+    @Test
+    public void waitForInstancesBecomingValid() {
+        final FactoryStub factory = new FactoryStub("factory", ComponentInstance.INVALID);
+        InstanceCreationHelper helper = createHelper(factory);
+        Thread validator = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (ComponentInstanceStub instance : factory.getStubs()) {
+                    instance.setState(ComponentInstance.VALID);
+                }
+            }
+        };
+        validator.start();
+        try {
+            InstanceCreationHelper.InstanceCreationReport report =
+                    helper.createComponentInstances("factory", configurations("a", "b"), 5000);
+            assertThat(report.getLatencies().getCount()).isEqualTo(2);
+            assertThat(report.getLatencies().getMax()).isGreaterThan(report.getCreationDuration());
+        } finally {
+            helper.dispose();
+        }
+    }
+
+    @Test
+    public void failWhenInstancesAreNotValid() {
+        InstanceCreationHelper helper = createHelper(new FactoryStub("factory", ComponentInstance.INVALID));
+        try {
+            helper.createComponentInstances("factory", configurations("a", "b"), 100);
+        } catch (AssertionError e) {
+            assertThat(e.getMessage()).contains("2 of 2 instances of factory not valid");
+            return;
+        } finally {
+            helper.dispose();
+        }
+        throw new AssertionError("Timeout not reported");
+    }
+
+    @Test
+    public void disposeInReverseCreationOrder() {
+        final List<String> disposed = Collections.synchronizedList(new ArrayList<String>());
+        InstanceStateListener recorder = new InstanceStateListener() {
+            public void stateChanged(ComponentInstance instance, int state) {
+                if (state == ComponentInstance.DISPOSED) {
+                    disposed.add(instance.getInstanceName());
+                }
+            }
+        };
+        m_helper.createComponentInstance("factory", "provider");
+        m_helper.createComponentInstances("factory", configurations("a", "b", "c"));
+        ComponentInstanceStub added = new ComponentInstanceStub("added", ComponentInstance.VALID);
+        m_helper.instances.add(added);
+        m_helper.createComponentInstance("factory", "consumer");
+        for (ComponentInstanceStub instance : m_factory.getStubs()) {
+            instance.addInstanceStateListener(recorder);
+        }
+        added.addInstanceStateListener(recorder);
+        assertThat(m_helper.getInstanceByName("added")).isSameAs(added);
+
+        m_helper.dispose();
+
+        assertThat(disposed).hasSize(6);
+        assertThat(disposed.get(0)).isEqualTo("consumer");
+        assertThat(disposed.get(1)).isEqualTo("added");
+        assertThat(disposed.subList(2, 5)).containsOnly("a", "b", "c");
+        assertThat(disposed.get(5)).isEqualTo("provider");
+        assertThat(m_helper.instances).isEmpty();
+        assertThat(m_helper.getInstanceByName("a")).isNull();
+    }
+
+    @Test
+    public void disposeAllInstancesWhenOneFails() {
+        ComponentInstanceStub failing = new ComponentInstanceStub("failing", ComponentInstance.VALID) {
+            @Override
+            public void dispose() {
+                throw new IllegalStateException("Already disposed");
+            }
+        };
+        m_helper.createComponentInstance("factory", "first");
+        m_helper.instances.add(failing);
+
+        m_helper.dispose();
+
+        assertThat(m_factory.getStubs().get(0).getState()).isEqualTo(ComponentInstance.DISPOSED);
+        assertThat(m_helper.instances).isEmpty();
+    }
+}
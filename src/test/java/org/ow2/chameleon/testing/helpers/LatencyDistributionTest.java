@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LatencyDistributionTest {
+
+    @Test
+    public void percentiles() {
+        LatencyDistribution distribution = new LatencyDistribution();
+        assertThat(distribution.getPercentile(50)).isEqualTo(-1);
+
+        for (int i = 100; i > 0; i--) {
+            distribution.record(i * 1000000L);
+        }
+        assertThat(distribution.getCount()).isEqualTo(100);
+        assertThat(distribution.getPercentile(50)).isEqualTo(50000000L);
+        assertThat(distribution.getPercentile(99)).isEqualTo(99000000L);
+        assertThat(distribution.getMax()).isEqualTo(100000000L);
+        assertThat(distribution.toString()).startsWith("p50 50.000 ms");
+
+        distribution.record(500000000L);
+        assertThat(distribution.getMax()).isEqualTo(500000000L);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ManifestIndexTest {
+
+    private static File jar(String symbolicName) throws IOException {
+        File file = File.createTempFile("index", ".jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (symbolicName != null) {
+            manifest.getMainAttributes().putValue("Bundle-ManifestVersion", "2");
+            manifest.getMainAttributes().putValue("Bundle-SymbolicName", symbolicName);
+            manifest.getMainAttributes().putValue("Bundle-Version", "1.2.3");
+        }
+        new JarOutputStream(new FileOutputStream(file), manifest).close();
+        return file;
+    }
+
+    @Test
+    public void index() throws IOException {
+        File file = File.createTempFile("index", ".properties");
+        file.delete();
+        File bundle = jar("org.acme.bundle;singleton:=true");
+        File plain = jar(null);
+
+        ManifestIndex index = new ManifestIndex(file);
+        assertThat(index.get(bundle).isBundle()).isTrue();
+        assertThat(index.get(bundle).getSymbolicName()).isEqualTo("org.acme.bundle");
+        assertThat(index.get(bundle).getVersion()).isEqualTo("1.2.3");
+        assertThat(index.get(plain).isBundle()).isFalse();
+        assertThat(index.getOpenedJarCount()).isEqualTo(2);
+        index.save();
+
+        ManifestIndex reloaded = new ManifestIndex(file);
+        assertThat(reloaded.get(bundle).getSymbolicName()).isEqualTo("org.acme.bundle");
+        assertThat(reloaded.get(plain).isBundle()).isFalse();
+        assertThat(reloaded.getOpenedJarCount()).isEqualTo(0);
+
+        // A changed jar is opened again.
+        bundle.setLastModified(bundle.lastModified() - 10000);
+        assertThat(reloaded.get(bundle).isBundle()).isTrue();
+        assertThat(reloaded.getOpenedJarCount()).isEqualTo(1);
+
+        bundle.delete();
+        plain.delete();
+        file.delete();
+    }
+}
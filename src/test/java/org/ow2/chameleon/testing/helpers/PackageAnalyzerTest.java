@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.ow2.chameleon.testing.helpers.fixture.ClassRetained;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PackageAnalyzerTest {
+
+    private static byte[] bytecode(Class<?> clazz) throws IOException {
+        String name = clazz.getName();
+        return IOUtils.toByteArray(clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class"));
+    }
+
+    @Test
+    public void referencedPackages() throws IOException {
+        assertThat(PackageAnalyzer.getReferencedPackages(bytecode(BundleHelper.class)))
+                .contains("org.osgi.framework", "org.osgi.framework.wiring", "java.util.concurrent")
+                .excludes("org.apache.felix.ipojo");
+    }
+
+    @ClassRetained
+    @Ignore
+    private static class Annotated {
+    }
+
+    private static class Generic<L> {
+        private Map<L, Callable<L>> m_values;
+    }
+
+    @Test
+    public void invisibleAnnotationsAreNotReferenced() throws IOException {
+        assertThat(PackageAnalyzer.getReferencedPackages(bytecode(Annotated.class)))
+                .containsOnly("java.lang", "org.junit", "org.ow2.chameleon.testing.helpers");
+    }
+
+    @Test
+    public void referencedPackagesOfGenericSignatures() throws IOException {
+        // The type arguments are only in the signature, the descriptor is the erasure.
+        assertThat(PackageAnalyzer.getReferencedPackages(bytecode(Generic.class)))
+                .containsOnly("java.lang", "java.util", "java.util.concurrent", "org.ow2.chameleon.testing.helpers");
+    }
+
+    @Test
+    public void clauses() throws IOException {
+        File cache = File.createTempFile("packages", ".properties");
+        cache.delete();
+
+        PackageAnalyzer analyzer = new PackageAnalyzer(cache);
+        analyzer.analyze("org/ow2/chameleon/testing/helpers/BundleHelper.class", bytecode(BundleHelper.class));
+        analyzer.analyze("org/ow2/chameleon/testing/helpers/packageinfo", "version 1.2.3".getBytes("UTF-8"));
+        assertThat(analyzer.getParsedClassCount()).isEqualTo(1);
+        assertThat(analyzer.getContainedPackages()).containsOnly("org.ow2.chameleon.testing.helpers");
+        assertThat(analyzer.getImportedPackages()).contains("org.osgi.framework")
+                .excludes("java.util", "org.ow2.chameleon.testing.helpers");
+
+        Map<String, String> versions = new HashMap<String, String>();
+        PackageAnalyzer.parseExports("org.osgi.framework;version=\"1.6\";uses:=\"a,b\", org.junit", versions);
+        assertThat(analyzer.getImportPackage(versions)).contains("org.osgi.framework;version=\"[1.6,2)\"")
+                .contains("org.junit, ");
+        assertThat(analyzer.getExportPackage(Collections.singletonList("org.ow2.chameleon.testing.helpers")))
+                .isEqualTo("org.ow2.chameleon.testing.helpers;version=\"1.2.3\"");
+        analyzer.save();
+
+        PackageAnalyzer cached = new PackageAnalyzer(cache);
+        cached.analyze("org/ow2/chameleon/testing/helpers/BundleHelper.class", bytecode(BundleHelper.class));
+        assertThat(cached.getParsedClassCount()).isEqualTo(0);
+        assertThat(cached.getImportedPackages()).isEqualTo(analyzer.getImportedPackages());
+        cache.delete();
+    }
+
+    @Test
+    public void consumerRange() {
+        assertThat(PackageAnalyzer.toConsumerRange("1.6.0")).isEqualTo("[1.6,2)");
+        assertThat(PackageAnalyzer.toConsumerRange("2")).isEqualTo("[2.0,3)");
+        assertThat(PackageAnalyzer.toConsumerRange("0.0.0")).isNull();
+        assertThat(PackageAnalyzer.toConsumerRange(null)).isNull();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ParallelJarBuilderTest {
+
+    private File m_root;
+
+    private Map<String, URL> m_resources = new LinkedHashMap<String, URL>();
+
+    private Map<String, String> m_headers = new LinkedHashMap<String, String>();
+
+    @Before
+    public void setUp() throws IOException {
+        m_root = new File("target/test-parallel-jar");
+        FileUtils.deleteDirectory(m_root);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("some repeated content ");
+        }
+        FileUtils.writeStringToFile(new File(m_root, "b/large.txt"), large.toString());
+        FileUtils.writeStringToFile(new File(m_root, "a/small.txt"), "x");
+        m_resources.put("org/acme/large.txt", new File(m_root, "b/large.txt").toURI().toURL());
+        m_resources.put("org/acme/small.txt", new File(m_root, "a/small.txt").toURI().toURL());
+        m_headers.put("Bundle-SymbolicName", "org.acme");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(m_root);
+    }
+
+    @Test
+    public void writeCompressedJar() throws IOException {
+        File jar = new File(m_root, "compressed.jar");
+        ParallelJarBuilder.write(jar, m_resources, m_headers);
+
+        JarFile file = new JarFile(jar);
+        try {
+            assertThat(file.getManifest().getMainAttributes().getValue("Bundle-SymbolicName")).isEqualTo("org.acme");
+            List<String> entries = new ArrayList<String>();
+            for (JarEntry entry : Collections.list(file.entries())) {
+                entries.add(entry.getName());
+            }
+            assertThat(entries).containsExactly(JarFile.MANIFEST_NAME, "org/acme/large.txt", "org/acme/small.txt");
+
+            JarEntry large = file.getJarEntry("org/acme/large.txt");
+            assertThat(large.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+            assertThat(large.getCompressedSize()).isLessThan(large.getSize());
+            assertThat(IOUtils.toString(file.getInputStream(large), "UTF-8"))
+                    .isEqualTo(FileUtils.readFileToString(new File(m_root, "b/large.txt")));
+            // Not worth compressing.
+            JarEntry small = file.getJarEntry("org/acme/small.txt");
+            assertThat(small.getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(IOUtils.toString(file.getInputStream(small), "UTF-8")).isEqualTo("x");
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void writeStoredJar() throws IOException {
+        File jar = new File(m_root, "stored.jar");
+        ParallelJarBuilder.write(jar, m_resources, m_headers, false);
+
+        // Streamed reading relies on the local headers only.
+        JarInputStream stream = new JarInputStream(new FileInputStream(jar));
+        try {
+            assertThat(stream.getManifest().getMainAttributes().getValue("Bundle-SymbolicName"))
+                    .isEqualTo("org.acme");
+            JarEntry entry = stream.getNextJarEntry();
+            assertThat(entry.getName()).isEqualTo("org/acme/large.txt");
+            assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(IOUtils.toString(stream, "UTF-8"))
+                    .isEqualTo(FileUtils.readFileToString(new File(m_root, "b/large.txt")));
+            assertThat(stream.getNextJarEntry().getName()).isEqualTo("org/acme/small.txt");
+            assertThat(stream.getNextJarEntry()).isNull();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void sameInputsGiveTheSameJar() throws IOException {
+        File first = new File(m_root, "first.jar");
+        File second = new File(m_root, "second.jar");
+        ParallelJarBuilder.write(first, m_resources, m_headers);
+        ParallelJarBuilder.write(second, m_resources, m_headers);
+        assertThat(FileUtils.contentEquals(first, second)).isTrue();
+
+        // Not the time of the build.
+        JarFile file = new JarFile(first);
+        try {
+            Calendar time = Calendar.getInstance();
+            time.setTimeInMillis(file.getJarEntry("org/acme/large.txt").getTime());
+            assertThat(time.get(Calendar.YEAR)).isEqualTo(1980);
+        } finally {
+            file.close();
+        }
+    }
+}
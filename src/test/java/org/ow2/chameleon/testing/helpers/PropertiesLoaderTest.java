@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PropertiesLoaderTest {
+
+    @Test
+    public void load() throws IOException {
+        File file = File.createTempFile("loader", ".properties");
+        FileUtils.writeStringToFile(file, "a=1\nb = two\n");
+
+        Map<String, String> properties = PropertiesLoader.load(file);
+        assertThat(properties).hasSize(2);
+        assertThat(properties.get("b")).isEqualTo("two");
+        assertThat(PropertiesLoader.load(file)).isSameAs(properties);
+
+        FileUtils.writeStringToFile(file, "a=2\n");
+        file.setLastModified(file.lastModified() - 10000);
+        assertThat(PropertiesLoader.load(file).get("a")).isEqualTo("2");
+        file.delete();
+    }
+}
@@ -1,5 +1,6 @@
 package org.ow2.chameleon.testing.helpers;
 
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 
@@ -13,7 +14,7 @@ class ServiceRegistrationStub implements ServiceRegistration {
 
     public final String m_interface;
     public final Object m_svcObject;
-    final Dictionary<String, ?> m_properties;
+    Dictionary<String, ?> m_properties;
     final BundleContextStub m_context;
     public ServiceReferenceStub m_ref = new ServiceReferenceStub(this);
 
@@ -34,10 +35,12 @@ class ServiceRegistrationStub implements ServiceRegistration {
     }
 
     public void setProperties(Dictionary dictionary) {
-        throw new UnsupportedOperationException("Operation not supported");
+        m_properties = dictionary;
+        m_context.fireServiceEvent(ServiceEvent.MODIFIED, m_ref);
     }
 
     public void unregister() {
+        m_context.fireServiceEvent(ServiceEvent.UNREGISTERING, m_ref);
         m_context.m_services.remove(this);
         m_ref = null;
     }
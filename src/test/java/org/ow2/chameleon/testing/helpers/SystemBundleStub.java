@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A system bundle adaptable to {@link FrameworkWiring}.
+ * Refreshes complete synchronously, and the dependencies between bundles are declared with
+ * {@link #addDependent(Bundle, Bundle)}.
+ */
+public class SystemBundleStub extends BundleStub implements FrameworkWiring {
+
+    private final Map<Bundle, List<Bundle>> m_dependents = new HashMap<Bundle, List<Bundle>>();
+    private final List<Collection<Bundle>> m_refreshes = new ArrayList<Collection<Bundle>>();
+
+    public SystemBundleStub() {
+        super(0, "org.apache.felix.framework", null);
+    }
+
+    public SystemBundleStub addDependent(Bundle bundle, Bundle dependent) {
+        List<Bundle> dependents = m_dependents.get(bundle);
+        if (dependents == null) {
+            dependents = new ArrayList<Bundle>();
+            m_dependents.put(bundle, dependents);
+        }
+        dependents.add(dependent);
+        return this;
+    }
+
+    /**
+     * @return the bundles given to each call of {@link #refreshBundles(Collection, FrameworkListener...)}.
+     */
+    public List<Collection<Bundle>> getRefreshes() {
+        return m_refreshes;
+    }
+
+    public Bundle getBundle() {
+        return this;
+    }
+
+    public void refreshBundles(Collection<Bundle> bundles, FrameworkListener... listeners) {
+        m_refreshes.add(bundles == null ? Collections.<Bundle>emptyList() : new ArrayList<Bundle>(bundles));
+        for (FrameworkListener listener : listeners) {
+            listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, this, null));
+        }
+    }
+
+    public boolean resolveBundles(Collection<Bundle> bundles) {
+        return true;
+    }
+
+    public Collection<Bundle> getRemovalPendingBundles() {
+        return Collections.emptyList();
+    }
+
+    public Collection<Bundle> getDependencyClosure(Collection<Bundle> bundles) {
+        Set<Bundle> closure = new LinkedHashSet<Bundle>();
+        List<Bundle> pending = new ArrayList<Bundle>(bundles);
+        while (!pending.isEmpty()) {
+            Bundle bundle = pending.remove(0);
+            if (closure.add(bundle) && m_dependents.containsKey(bundle)) {
+                pending.addAll(m_dependents.get(bundle));
+            }
+        }
+        return closure;
+    }
+}
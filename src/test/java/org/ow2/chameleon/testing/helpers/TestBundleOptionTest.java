@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.testing.helpers;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TestBundleOptionTest {
+
+    private static final List<String> NO_EXPORTS = Collections.emptyList();
+
+    private File m_root;
+
+    @Before
+    public void setUp() throws IOException {
+        m_root = new File("target/test-bundle-inputs");
+        FileUtils.deleteDirectory(m_root);
+        FileUtils.writeStringToFile(new File(m_root, "org/acme/A.class"), "a");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(m_root);
+    }
+
+    @Test
+    public void stampAndHash() throws IOException {
+        File file = new File(m_root, "org/acme/A.class");
+        String stamp = TestBundleOption.computeInputStamp(NO_EXPORTS, m_root);
+        String hash = TestBundleOption.computeInputHash(NO_EXPORTS, m_root);
+        assertThat(TestBundleOption.computeInputStamp(NO_EXPORTS, m_root)).isEqualTo(stamp);
+
+        // Touching a file changes the stamp, not the hash.
+        assertThat(file.setLastModified(file.lastModified() - 10000)).isTrue();
+        assertThat(TestBundleOption.computeInputStamp(NO_EXPORTS, m_root)).isNotEqualTo(stamp);
+        assertThat(TestBundleOption.computeInputHash(NO_EXPORTS, m_root)).isEqualTo(hash);
+
+        // The extra exports are part of both.
+        List<String> exports = Arrays.asList("org.acme");
+        assertThat(TestBundleOption.computeInputStamp(exports, m_root)).isNotEqualTo(
+                TestBundleOption.computeInputStamp(NO_EXPORTS, m_root));
+        assertThat(TestBundleOption.computeInputHash(exports, m_root)).isNotEqualTo(hash);
+
+        FileUtils.writeStringToFile(file, "b");
+        assertThat(TestBundleOption.computeInputHash(NO_EXPORTS, m_root)).isNotEqualTo(hash);
+    }
+}